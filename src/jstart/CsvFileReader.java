@@ -84,6 +84,15 @@ public class CsvFileReader implements Closeable {
         this(new File(filename), separator, withHeader);
     }
 
+    /**
+     * Gets the fields read from the header line
+     * 
+     * @return field names (null if the file has no header)
+     */
+    public String[] getFields() {
+        return fields;
+    }
+
     /**
      * Reads a record in the CSV file and returns an CsvObject
      * 
@@ -107,7 +116,7 @@ public class CsvFileReader implements Closeable {
 
     /**
      * Reads a record in the CSV file as an array
-     * @return an string array with the record data
+     * @return an string array with the record data (null at the end of file)
      */
     public String[] getNextRecordAsArray() {
         List<String> data = new ArrayList<>();
@@ -115,6 +124,9 @@ public class CsvFileReader implements Closeable {
         try {
             String line = br.readLine();
 
+            if (line == null)
+                return null;
+
             if (fields != null && fields.length > 0)
                 data.addAll(Arrays.asList(line.split(separator, fields.length)));
             else
@@ -5,16 +5,20 @@ package jstart;
  */
 public class Timeout {
     private Thread thread;
+    private volatile boolean stopped;
 
     private Timeout(final long ms, final boolean asInterval, final Runnable code) {
         this.thread = new Thread(() -> {
-            while (true) {
+            while (!stopped) {
                 try {
                     Thread.sleep(ms);
                 } catch (InterruptedException e) {
 
                 }
 
+                if (stopped) // Stopped while waiting: not run
+                    break;
+
                 code.run();
 
                 if (!asInterval)
@@ -55,9 +59,11 @@ public class Timeout {
     }
 
     /**
-     * Soft stop for running code
+     * Soft stop for running code: a pending run is cancelled and an interval
+     * ends after the current run
      */
     public void stop() {
+        stopped = true;
         thread.interrupt();
     }
 
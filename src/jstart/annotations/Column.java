@@ -0,0 +1,20 @@
+package jstart.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Column Annotation Class. MappedEntity subclasses with annotated fields are
+ * read and written by a compiled mapper instead of hand-written
+ * readFrom()/writeTo()
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Column {
+    /**
+     * @return column name related to the field (field name by default)
+     */
+    public String name() default "";
+}
@@ -1,9 +1,11 @@
 package jstart.db;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Command class (SQL instruction support)
@@ -75,12 +77,35 @@ public abstract class Command<T> {
     }
 
     /**
-     * Gets the command parameters
+     * Gets the command parameters, followed by the values bound by a
+     * parameterized filter (so ? placeholders bound with param() must come
+     * before them in the SQL text, see Filter.params())
      * 
      * @return list of values (parameters)
      */
     protected List<Object> getParameters() {
-        return parameters;
+        return withFilterParameters(parameters, filter);
+    }
+
+    /**
+     * Appends the bound values of a filter to a list of parameters
+     * 
+     * @param parameters current parameters (can be null)
+     * @param filter     filter (can be null)
+     * @return list of parameters
+     */
+    protected static List<Object> withFilterParameters(List<Object> parameters, Filter filter) {
+        if (filter == null || filter.getParameters().isEmpty())
+            return parameters;
+
+        var all = new ArrayList<Object>();
+
+        if (parameters != null)
+            all.addAll(parameters);
+
+        all.addAll(filter.getParameters());
+
+        return all;
     }
 
     /**
@@ -105,7 +130,8 @@ public abstract class Command<T> {
      * @return command object
      */
     public boolean hasParameters() {
-        return parameters != null && !parameters.isEmpty();
+        var all = getParameters();
+        return all != null && !all.isEmpty();
     }
 
     /**
@@ -129,6 +155,22 @@ public abstract class Command<T> {
         return table;
     }
 
+    /**
+     * Gets the normalized names of the tables used by the command, including
+     * those of the subselects of its filter (for cache invalidation)
+     * 
+     * @return set of table names
+     */
+    Set<String> getTables() {
+        if (filter == null || filter.getTables().isEmpty())
+            return Set.of(QueryCache.tableName(table));
+
+        var tables = new HashSet<>(filter.getTables());
+        tables.add(QueryCache.tableName(table));
+
+        return tables;
+    }
+
     /**
      * Set a key/value pair (for update or insert commands)
      * 
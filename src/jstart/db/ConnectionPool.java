@@ -0,0 +1,399 @@
+package jstart.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Bounded pool of JDBC connections. Connections are leased for every query
+ * and given back when the query finishes, so many threads can work with the
+ * database at the same time
+ */
+public class ConnectionPool implements ConnectionSource {
+    /**
+     * Configuration of a connection pool
+     */
+    public static class Options {
+        private int minSize = 1;
+        private int maxSize = 10;
+        private long idleTimeout = 600_000;
+        private long acquireTimeout = 30_000;
+        private long leakThreshold = 0;
+        private long housekeepingInterval = 30_000;
+        private int validationTimeout = 5;
+        private Consumer<Exception> onError = e -> {
+        };
+
+        /**
+         * Creates a default pool configuration (1 to 10 connections)
+         *
+         * @return options object
+         */
+        public static Options create() {
+            return new Options();
+        }
+
+        /**
+         * @param minSize connections kept open even when idle
+         * @return options object
+         */
+        public Options minSize(int minSize) {
+            this.minSize = minSize;
+            return this;
+        }
+
+        /**
+         * @param maxSize maximum number of connections open at the same time
+         * @return options object
+         */
+        public Options maxSize(int maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * @param ms milliseconds before an idle connection (over the minimum
+         *           size) is closed
+         * @return options object
+         */
+        public Options idleTimeout(long ms) {
+            this.idleTimeout = ms;
+            return this;
+        }
+
+        /**
+         * @param ms milliseconds a query waits for a free connection before
+         *           failing
+         * @return options object
+         */
+        public Options acquireTimeout(long ms) {
+            this.acquireTimeout = ms;
+            return this;
+        }
+
+        /**
+         * @param ms milliseconds a connection can be leased before it's reported
+         *           to onError as a possible leak (0 disables the detection)
+         * @return options object
+         */
+        public Options leakThreshold(long ms) {
+            this.leakThreshold = ms;
+            return this;
+        }
+
+        /**
+         * @param ms milliseconds between idle eviction and leak checks
+         * @return options object
+         */
+        public Options housekeepingInterval(long ms) {
+            this.housekeepingInterval = ms;
+            return this;
+        }
+
+        /**
+         * @param seconds timeout for the validation of a connection on borrow
+         * @return options object
+         */
+        public Options validationTimeout(int seconds) {
+            this.validationTimeout = seconds;
+            return this;
+        }
+
+        /**
+         * @param onError receives the errors of the housekeeping: failures
+         *                opening the minimum connections and possible leaks
+         *                (an IllegalStateException caused by the lease trace).
+         *                Ignored by default
+         * @return options object
+         */
+        public Options onError(Consumer<Exception> onError) {
+            this.onError = onError;
+            return this;
+        }
+    }
+
+    /**
+     * Pooled connection data
+     */
+    private static class Entry {
+        final Connection conn;
+        final StatementCache statements;
+        volatile long lastUsed;
+        volatile long leasedAt;
+        volatile Throwable leaseTrace;
+        volatile boolean leakReported;
+
+        Entry(Connection conn, StatementCache.Config statementConfig) {
+            this.conn = conn;
+            this.statements = new StatementCache(conn, statementConfig);
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private static final ScheduledExecutorService housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        var thread = new Thread(r, "jstart-pool-housekeeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Factory factory;
+    private final Options options;
+    private final StatementCache.Config statementConfig;
+    private final LinkedBlockingDeque<Entry> idle;
+    private final Map<Connection, Entry> leased;
+    private final Semaphore permits;
+    private final AtomicInteger total;
+    private final ScheduledFuture<?> housekeeping;
+    private volatile boolean closed;
+
+    ConnectionPool(Factory factory, Options options, StatementCache.Config statementConfig) throws SQLException {
+        if (options.maxSize < 1 || options.minSize < 0 || options.minSize > options.maxSize)
+            throw new IllegalArgumentException("Invalid pool size (min %d, max %d)"
+                    .formatted(options.minSize, options.maxSize));
+
+        if (options.housekeepingInterval <= 0)
+            throw new IllegalArgumentException("Housekeeping interval must be greater than 0");
+
+        this.factory = factory;
+        this.options = options;
+        this.statementConfig = statementConfig;
+        this.idle = new LinkedBlockingDeque<>();
+        this.leased = new ConcurrentHashMap<>();
+        this.permits = new Semaphore(options.maxSize, true);
+        this.total = new AtomicInteger();
+
+        fill();
+
+        this.housekeeping = housekeeper.scheduleWithFixedDelay(this::housekeep,
+                options.housekeepingInterval, options.housekeepingInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Leases a connection, waiting up to the acquire timeout if the pool is
+     * exhausted. Idle connections are validated before being returned
+     */
+    @Override
+    public Connection acquire() throws SQLException {
+        if (closed)
+            throw new SQLException("Connection pool is closed");
+
+        try {
+            if (!permits.tryAcquire(options.acquireTimeout, TimeUnit.MILLISECONDS))
+                throw new SQLTimeoutException("Timeout waiting for a pooled connection (%d ms)"
+                        .formatted(options.acquireTimeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a pooled connection", e);
+        }
+
+        try {
+            Entry entry;
+
+            while ((entry = idle.pollFirst()) != null) {
+                if (isValid(entry))
+                    break;
+
+                discard(entry);
+            }
+
+            if (entry == null)
+                entry = open();
+
+            entry.leasedAt = System.currentTimeMillis();
+            entry.leakReported = false;
+
+            if (options.leakThreshold > 0)
+                entry.leaseTrace = new Throwable("Connection leased here");
+
+            leased.put(entry.conn, entry);
+
+            return entry.conn;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool. Broken connections are discarded
+     */
+    @Override
+    public void release(Connection conn) {
+        final var entry = leased.remove(conn);
+
+        if (entry == null)
+            return;
+
+        entry.lastUsed = System.currentTimeMillis();
+        entry.leaseTrace = null;
+
+        try {
+            if (closed || conn.isClosed()) {
+                discard(entry);
+            } else {
+                if (!conn.getAutoCommit()) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+
+                idle.offerFirst(entry);
+            }
+        } catch (SQLException e) {
+            discard(entry);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public boolean isPooled() {
+        return true;
+    }
+
+    @Override
+    public StatementCache statements(Connection conn) {
+        final var entry = leased.get(conn);
+
+        if (entry == null)
+            throw new IllegalStateException("The connection isn't leased from this pool");
+
+        return entry.statements;
+    }
+
+    /**
+     * @return maximum number of connections open at the same time
+     */
+    public int getMaxSize() {
+        return options.maxSize;
+    }
+
+    Options getOptions() {
+        return options;
+    }
+
+    /**
+     * @return number of open connections (idle and leased)
+     */
+    public int getSize() {
+        return total.get();
+    }
+
+    /**
+     * @return number of idle connections
+     */
+    public int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * @return number of leased connections
+     */
+    public int getActive() {
+        return leased.size();
+    }
+
+    /**
+     * Closes all idle connections. Leased connections are closed when they are
+     * given back
+     */
+    @Override
+    public void close() {
+        closed = true;
+        housekeeping.cancel(false);
+
+        Entry entry;
+
+        while ((entry = idle.pollFirst()) != null) {
+            discard(entry);
+        }
+    }
+
+    private Entry open() throws SQLException {
+        total.incrementAndGet();
+
+        try {
+            return new Entry(factory.open(), statementConfig);
+        } catch (SQLException | RuntimeException e) {
+            total.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void fill() throws SQLException {
+        while (!closed && total.get() < options.minSize) {
+            idle.offerLast(open());
+        }
+    }
+
+    private boolean isValid(Entry entry) {
+        try {
+            return entry.conn.isValid(options.validationTimeout);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(Entry entry) {
+        total.decrementAndGet();
+        entry.statements.close();
+
+        try {
+            entry.conn.close();
+        } catch (SQLException e) {
+            // The connection is being thrown away anyway
+        }
+    }
+
+    /**
+     * Evicts idle connections over the minimum size, refills the pool and
+     * reports leases held longer than the leak threshold
+     */
+    private void housekeep() {
+        final long now = System.currentTimeMillis();
+
+        for (var entry : new ArrayList<>(idle)) {
+            if (total.get() > options.minSize && now - entry.lastUsed > options.idleTimeout && idle.remove(entry))
+                discard(entry);
+        }
+
+        try {
+            fill();
+        } catch (SQLException e) {
+            report(e);
+        }
+
+        if (options.leakThreshold > 0) {
+            for (var entry : leased.values()) {
+                if (!entry.leakReported && now - entry.leasedAt > options.leakThreshold) {
+                    entry.leakReported = true;
+
+                    report(new IllegalStateException("Possible connection leak: leased for %d ms"
+                            .formatted(now - entry.leasedAt), entry.leaseTrace));
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes an error to the listener (an exception thrown by it would cancel
+     * the housekeeping)
+     */
+    private void report(Exception e) {
+        try {
+            options.onError.accept(e);
+        } catch (RuntimeException ignored) {
+            // The housekeeping must keep running
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package jstart.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Source of JDBC connections used by a DBConnection. Every query leases a
+ * connection before running and returns it when finished
+ */
+interface ConnectionSource extends AutoCloseable {
+    /**
+     * Opens a new physical connection to the database
+     */
+    @FunctionalInterface
+    interface Factory {
+        Connection open() throws SQLException;
+    }
+
+    /**
+     * Leases a connection for a single operation
+     *
+     * @return connection object
+     * @throws SQLException
+     */
+    Connection acquire() throws SQLException;
+
+    /**
+     * Gives back a previously leased connection
+     *
+     * @param conn connection to release
+     */
+    void release(Connection conn);
+
+    /**
+     * Indicates if the source can serve several connections at the same time
+     *
+     * @return true if the source is pooled
+     */
+    boolean isPooled();
+
+    /**
+     * Gets the prepared statement cache of a leased connection
+     *
+     * @param conn connection leased from this source
+     * @return statement cache of the connection
+     */
+    StatementCache statements(Connection conn);
+
+    @Override
+    void close() throws SQLException;
+
+    /**
+     * Source bound to a connection leased from another source, so several
+     * queries run on the same connection (and transaction)
+     */
+    static class Pinned implements ConnectionSource {
+        private final Connection conn;
+        private final StatementCache statements;
+
+        Pinned(Connection conn, StatementCache statements) {
+            this.conn = conn;
+            this.statements = statements;
+        }
+
+        @Override
+        public Connection acquire() {
+            return conn;
+        }
+
+        @Override
+        public void release(Connection conn) {
+        }
+
+        @Override
+        public boolean isPooled() {
+            return false;
+        }
+
+        @Override
+        public StatementCache statements(Connection conn) {
+            return statements;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Source opening a new physical connection for every lease, closed when it's
+     * released. Used by the work of a non-pooled DBConnection that changes the
+     * state of its connection (transactions, batches without autocommit), so it
+     * doesn't affect the queries of other threads on the shared connection
+     */
+    static class Dedicated implements ConnectionSource {
+        private final Factory factory;
+        private final StatementCache.Config statementConfig;
+        private final Map<Connection, StatementCache> leased;
+
+        Dedicated(Factory factory, StatementCache.Config statementConfig) {
+            this.factory = factory;
+            this.statementConfig = statementConfig;
+            this.leased = new ConcurrentHashMap<>();
+        }
+
+        @Override
+        public Connection acquire() throws SQLException {
+            final var conn = factory.open();
+
+            leased.put(conn, new StatementCache(conn, statementConfig));
+
+            return conn;
+        }
+
+        @Override
+        public void release(Connection conn) {
+            final var statements = leased.remove(conn);
+
+            if (statements == null)
+                throw new IllegalStateException("The connection isn't leased from this source");
+
+            try {
+                statements.close();
+                conn.close();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public boolean isPooled() {
+            return false;
+        }
+
+        @Override
+        public StatementCache statements(Connection conn) {
+            final var statements = leased.get(conn);
+
+            if (statements == null)
+                throw new IllegalStateException("The connection isn't leased from this source");
+
+            return statements;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            for (var conn : leased.keySet()) {
+                release(conn);
+            }
+        }
+    }
+
+    /**
+     * Source with only one shared connection (classic behaviour)
+     */
+    static class Single implements ConnectionSource {
+        private final Connection conn;
+        private final StatementCache statements;
+
+        Single(Factory factory, StatementCache.Config statementConfig) throws SQLException {
+            conn = factory.open();
+            statements = new StatementCache(conn, statementConfig);
+        }
+
+        @Override
+        public Connection acquire() {
+            return conn;
+        }
+
+        @Override
+        public void release(Connection conn) {
+        }
+
+        @Override
+        public boolean isPooled() {
+            return false;
+        }
+
+        @Override
+        public StatementCache statements(Connection conn) {
+            return statements;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            statements.close();
+            conn.close();
+        }
+    }
+}
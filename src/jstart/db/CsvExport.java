@@ -0,0 +1,252 @@
+package jstart.db;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Base64;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the rows of a result set to a CSV file as they are read, so exports
+ * run in constant memory. Every column is formatted by its JDBC type, without
+ * building a map or an entity per row
+ */
+public class CsvExport {
+    /**
+     * Options of a CSV export
+     */
+    public static class Options {
+        private String separator = ";";
+        private boolean header = true;
+        private boolean gzip;
+        private String nullValue = "";
+        private Charset charset = StandardCharsets.UTF_8;
+        private int bufferSize = 1 << 16;
+
+        private Options() {
+        }
+
+        /**
+         * Creates the default options: ";" separator (like CsvFileWriter), header
+         * line, UTF-8 and no compression
+         *
+         * @return options object
+         */
+        public static Options create() {
+            return new Options();
+        }
+
+        /**
+         * @param separator string separator of fields
+         * @return options object
+         */
+        public Options separator(String separator) {
+            this.separator = separator;
+            return this;
+        }
+
+        /**
+         * @param header true to write a first line with the column labels
+         * @return options object
+         */
+        public Options header(boolean header) {
+            this.header = header;
+            return this;
+        }
+
+        /**
+         * @param gzip true to compress the file with gzip
+         * @return options object
+         */
+        public Options gzip(boolean gzip) {
+            this.gzip = gzip;
+            return this;
+        }
+
+        /**
+         * @param nullValue text written for NULL values (empty by default)
+         * @return options object
+         */
+        public Options nullValue(String nullValue) {
+            this.nullValue = nullValue;
+            return this;
+        }
+
+        /**
+         * @param charset character set of the file
+         * @return options object
+         */
+        public Options charset(Charset charset) {
+            this.charset = charset;
+            return this;
+        }
+
+        /**
+         * @param bufferSize bytes buffered before writing to the file
+         * @return options object
+         */
+        public Options bufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+    }
+
+    /**
+     * Writes the value of a column of the current row
+     */
+    @FunctionalInterface
+    private interface ColumnWriter {
+        String format(ResultSet rs, int index) throws SQLException;
+    }
+
+    private CsvExport() {
+    }
+
+    /**
+     * Writes all the remaining rows of a result set to a CSV file
+     *
+     * @param rs      result set
+     * @param path    CSV file (replaced if it exists)
+     * @param options export options
+     * @return number of exported rows
+     * @throws SQLException
+     * @throws IOException
+     */
+    public static long write(ResultSet rs, Path path, Options options) throws SQLException, IOException {
+        var out = Files.newOutputStream(path);
+
+        if (options.gzip)
+            out = new GZIPOutputStream(out, options.bufferSize);
+
+        try (var writer = new BufferedWriter(new OutputStreamWriter(out, options.charset), options.bufferSize)) {
+            return write(rs, writer, options);
+        }
+    }
+
+    /**
+     * Writes all the remaining rows of a result set as CSV
+     *
+     * @param rs      result set
+     * @param writer  output (not closed)
+     * @param options export options
+     * @return number of exported rows
+     * @throws SQLException
+     * @throws IOException
+     */
+    public static long write(ResultSet rs, Writer writer, Options options) throws SQLException, IOException {
+        final var metadata = rs.getMetaData();
+        final int count = metadata.getColumnCount();
+        final var columns = new ColumnWriter[count];
+
+        for (int x = 0; x < count; x++) {
+            columns[x] = columnWriter(metadata.getColumnType(x + 1));
+        }
+
+        if (options.header) {
+            for (int x = 0; x < count; x++) {
+                if (x > 0)
+                    writer.write(options.separator);
+
+                writer.write(escape(metadata.getColumnLabel(x + 1), options.separator));
+            }
+
+            writer.write('\n');
+        }
+
+        long rows = 0;
+
+        while (rs.next()) {
+            for (int x = 0; x < count; x++) {
+                if (x > 0)
+                    writer.write(options.separator);
+
+                final var value = columns[x].format(rs, x + 1);
+                writer.write(value == null ? options.nullValue : escape(value, options.separator));
+            }
+
+            writer.write('\n');
+            rows++;
+        }
+
+        return rows;
+    }
+
+    /**
+     * Chooses the formatting of a column by its JDBC type
+     */
+    private static ColumnWriter columnWriter(int type) {
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return (rs, index) -> {
+                    final long value = rs.getLong(index);
+                    return rs.wasNull() ? null : Long.toString(value);
+                };
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return (rs, index) -> {
+                    final double value = rs.getDouble(index);
+                    return rs.wasNull() ? null : Double.toString(value);
+                };
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return (rs, index) -> {
+                    final var value = rs.getBigDecimal(index);
+                    return value == null ? null : value.toPlainString();
+                };
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return (rs, index) -> {
+                    final boolean value = rs.getBoolean(index);
+                    return rs.wasNull() ? null : Boolean.toString(value);
+                };
+            case Types.DATE:
+                return (rs, index) -> {
+                    final var value = rs.getDate(index);
+                    return value == null ? null : value.toString();
+                };
+            case Types.TIME:
+                return (rs, index) -> {
+                    final var value = rs.getTime(index);
+                    return value == null ? null : value.toString();
+                };
+            case Types.TIMESTAMP:
+                return (rs, index) -> {
+                    final var value = rs.getTimestamp(index);
+                    return value == null ? null : value.toLocalDateTime().toString();
+                };
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return (rs, index) -> {
+                    final var value = rs.getBytes(index);
+                    return value == null ? null : Base64.getEncoder().encodeToString(value);
+                };
+            default:
+                return ResultSet::getString;
+        }
+    }
+
+    /**
+     * Quotes a value containing the separator, quotes or line breaks (RFC 4180)
+     */
+    private static String escape(String value, String separator) {
+        if (!value.contains(separator) && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+                && value.indexOf('\r') < 0)
+            return value;
+
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,458 @@
+package jstart.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import jstart.CsvFileReader;
+
+/**
+ * Bulk import of a CSV file into a table. Reading lines, converting them into
+ * column values and writing them run concurrently as three stages connected by
+ * bounded queues of row chunks. Rows are written with multi-row inserts split
+ * by the limits of the dialect (EXECUTE BLOCK on Firebird, JDBC batches where
+ * there are no multi-row inserts), in transactions of many rows (a single
+ * transaction on SQLite)
+ */
+public class CsvImport {
+    /**
+     * Counters of a running or finished import
+     */
+    public static class Progress {
+        private final long rowsRead;
+        private final long rowsWritten;
+        private final long elapsed;
+
+        private Progress(long rowsRead, long rowsWritten, long elapsed) {
+            this.rowsRead = rowsRead;
+            this.rowsWritten = rowsWritten;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * @return number of lines read from the file
+         */
+        public long getRowsRead() {
+            return rowsRead;
+        }
+
+        /**
+         * @return number of rows inserted in the table
+         */
+        public long getRowsWritten() {
+            return rowsWritten;
+        }
+
+        /**
+         * @return milliseconds since the import started
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * @return inserted rows per second
+         */
+        public double getRowsPerSecond() {
+            return elapsed == 0 ? 0 : rowsWritten * 1000.0 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return "read=%d, written=%d, elapsed=%dms, %.0f rows/s"
+                    .formatted(rowsRead, rowsWritten, elapsed, getRowsPerSecond());
+        }
+    }
+
+    private static final List<Object[]> END = new ArrayList<>();
+
+    private final DBConnection connection;
+    private final String table;
+    private final EntityMetadata<?> entity;
+    private final Map<String, Function<String, Object>> converters;
+    private String[] columns;
+    private int batchSize = 1000;
+    private int queueSize = 4;
+    private long commitRows = -1;
+    private boolean emptyAsNull = true;
+    private Consumer<Progress> listener;
+    private long progressRows;
+
+    private CsvImport(DBConnection connection, String table, EntityMetadata<?> entity) {
+        this.connection = connection;
+        this.table = table;
+        this.entity = entity;
+        this.converters = new HashMap<>();
+    }
+
+    /**
+     * Creates an import into a table. CSV values are inserted as strings unless
+     * a converter is given for the column
+     *
+     * @param connection database connection
+     * @param table      table name
+     * @return import object
+     */
+    public static CsvImport into(DBConnection connection, String table) {
+        return new CsvImport(connection, table, null);
+    }
+
+    /**
+     * Creates an import into the table of an entity. Every line is read into an
+     * entity object (readFrom()), so values are converted like the entity does
+     *
+     * @param connection database connection
+     * @param entity     entity class
+     * @return import object
+     */
+    public static CsvImport into(DBConnection connection, Class<? extends Entity<?>> entity) {
+        final var metadata = EntityMetadata.of(entity);
+        return new CsvImport(connection, metadata.getTable(), metadata);
+    }
+
+    /**
+     * Sets the column names of the CSV fields, in file order (by default the
+     * fields of the header line)
+     *
+     * @param columns column names
+     * @return import object
+     */
+    public CsvImport columns(String... columns) {
+        this.columns = columns;
+        return this;
+    }
+
+    /**
+     * Sets the conversion of the CSV values of a column
+     *
+     * @param column    column name
+     * @param converter converts a CSV value to the value inserted
+     * @return import object
+     */
+    public CsvImport converter(String column, Function<String, Object> converter) {
+        converters.put(column, converter);
+        return this;
+    }
+
+    /**
+     * Sets the number of rows of every insert statement or JDBC batch (default
+     * 1000, bounded by the dialect parameter limits)
+     *
+     * @param batchSize rows per insert
+     * @return import object
+     */
+    public CsvImport batchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be greater than 0");
+
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets the number of row chunks waiting between stages (default 4)
+     *
+     * @param queueSize chunks per queue
+     * @return import object
+     */
+    public CsvImport queueSize(int queueSize) {
+        if (queueSize < 1)
+            throw new IllegalArgumentException("Queue size must be greater than 0");
+
+        this.queueSize = queueSize;
+        return this;
+    }
+
+    /**
+     * Sets the number of rows of every transaction (0 for a single transaction).
+     * By default it's a single transaction on SQLite and a transaction per batch
+     * on other databases
+     *
+     * @param commitRows rows per transaction
+     * @return import object
+     */
+    public CsvImport commitRows(long commitRows) {
+        this.commitRows = commitRows;
+        return this;
+    }
+
+    /**
+     * Indicates if empty CSV values are inserted as NULL (default true)
+     *
+     * @param emptyAsNull true to insert NULL
+     * @return import object
+     */
+    public CsvImport emptyAsNull(boolean emptyAsNull) {
+        this.emptyAsNull = emptyAsNull;
+        return this;
+    }
+
+    /**
+     * Reports the progress of the import every number of written rows (called
+     * from the thread running the import)
+     *
+     * @param listener receives the counters
+     * @param everyRows rows between reports
+     * @return import object
+     */
+    public CsvImport progress(Consumer<Progress> listener, long everyRows) {
+        this.listener = listener;
+        this.progressRows = Math.max(1, everyRows);
+        return this;
+    }
+
+    /**
+     * Imports all the lines of a CSV file
+     *
+     * @param reader open CSV file (not closed by the import)
+     * @return final counters of the import
+     * @throws SQLException
+     */
+    public Progress run(CsvFileReader reader) throws SQLException {
+        final var names = columns != null ? columns : reader.getFields();
+
+        if (names == null || names.length == 0)
+            throw new IllegalStateException("The CSV file has no header: give the column names with columns()");
+
+        final var target = targetColumns(names);
+        final var dialect = connection.getDialect();
+        final long rowsPerCommit = commitRows >= 0 ? commitRows : dialect == Dialect.SQLITE ? 0 : batchSize;
+
+        // The connection is ready before the stages start, so a failure here
+        // leaves no thread running (not the shared connection of the DBConnection)
+        final var source = connection.getExclusiveSource();
+        final var conn = source.acquire();
+        final ConnectionSource.Pinned pinned;
+        final boolean autoCommit;
+
+        try {
+            pinned = new ConnectionSource.Pinned(conn, source.statements(conn));
+            autoCommit = conn.getAutoCommit();
+        } catch (SQLException | RuntimeException e) {
+            source.release(conn);
+            throw e;
+        }
+
+        final long started = System.currentTimeMillis();
+        final var read = new AtomicLong();
+        final var cancelled = new AtomicBoolean();
+        final BlockingQueue<List<String[]>> lines = new ArrayBlockingQueue<>(queueSize);
+        final BlockingQueue<List<Object[]>> rows = new ArrayBlockingQueue<>(queueSize);
+        final ExecutorService stages = Executors.newFixedThreadPool(2, r -> {
+            var thread = new Thread(r, "jstart-csv-import");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final Future<?> reading = stages.submit(() -> {
+            List<String[]> chunk = new ArrayList<>(batchSize);
+
+            try {
+                for (var line = reader.getNextRecordAsArray(); line != null; line = reader.getNextRecordAsArray()) {
+                    chunk.add(line);
+                    read.incrementAndGet();
+
+                    if (chunk.size() == batchSize) {
+                        put(lines, chunk, cancelled);
+                        chunk = new ArrayList<>(batchSize);
+                    }
+                }
+
+                if (!chunk.isEmpty())
+                    put(lines, chunk, cancelled);
+            } finally {
+                put(lines, List.of(), cancelled);
+            }
+
+            return null;
+        });
+
+        final Future<?> converting = stages.submit(() -> {
+            try {
+                for (var chunk = lines.take(); !chunk.isEmpty(); chunk = lines.take()) {
+                    var converted = new ArrayList<Object[]>(chunk.size());
+
+                    for (var line : chunk) {
+                        converted.add(convert(names, target, line));
+                    }
+
+                    put(rows, converted, cancelled);
+                }
+            } finally {
+                put(rows, END, cancelled);
+            }
+
+            return null;
+        });
+
+        long written = 0;
+        long uncommitted = 0;
+        long reported = 0;
+
+        try {
+            conn.setAutoCommit(false);
+
+            for (var chunk = rows.take(); chunk != END; chunk = rows.take()) {
+                write(pinned, target, chunk);
+                written += chunk.size();
+                uncommitted += chunk.size();
+
+                if (rowsPerCommit > 0 && uncommitted >= rowsPerCommit) {
+                    conn.commit();
+                    uncommitted = 0;
+                }
+
+                if (listener != null && written - reported >= progressRows) {
+                    reported = written;
+                    listener.accept(new Progress(read.get(), written, System.currentTimeMillis() - started));
+                }
+            }
+
+            converting.get(); // Fails first if a conversion fails, so reading isn't left blocked
+            reading.get();
+            conn.commit();
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } catch (InterruptedException e) {
+            conn.rollback();
+            Thread.currentThread().interrupt();
+            throw new SQLException("CSV import interrupted", e);
+        } catch (ExecutionException e) {
+            conn.rollback();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            cancelled.set(true);
+            stages.shutdownNow();
+
+            try {
+                conn.setAutoCommit(autoCommit);
+            } finally {
+                source.release(conn);
+
+                final var cache = connection.getQueryCache();
+
+                if (cache != null)
+                    cache.invalidate(table);
+            }
+        }
+
+        final var progress = new Progress(read.get(), written, System.currentTimeMillis() - started);
+
+        if (listener != null && written != reported)
+            listener.accept(progress);
+
+        return progress;
+    }
+
+    /**
+     * Columns inserted in the table: the CSV columns, or those of them mapped by
+     * the entity
+     */
+    private List<String> targetColumns(String[] names) {
+        if (entity == null || entity.getColumns().isEmpty())
+            return Arrays.asList(names);
+
+        var target = new ArrayList<String>();
+
+        for (var name : names) {
+            if (entity.getColumns().contains(name))
+                target.add(name);
+        }
+
+        return target;
+    }
+
+    /**
+     * Converts a CSV line into the values of the target columns
+     */
+    private Object[] convert(String[] names, List<String> target, String[] line) {
+        final var values = new MapValues();
+
+        for (int x = 0; x < names.length; x++) {
+            final String text = x < line.length ? line[x] : null;
+            final var converter = converters.get(names[x]);
+
+            if (text == null || (emptyAsNull && text.isEmpty()))
+                values.put(names[x], converter != null ? converter.apply(null) : null);
+            else
+                values.put(names[x], converter != null ? converter.apply(text) : text);
+        }
+
+        if (entity != null)
+            return entityRow(entity, values, target);
+
+        var row = new Object[target.size()];
+
+        for (int x = 0; x < row.length; x++) {
+            row[x] = values.get(target.get(x));
+        }
+
+        return row;
+    }
+
+    /**
+     * Reads the values into an entity object and gets back the values of the
+     * target columns, converted by the entity
+     */
+    private static <E> Object[] entityRow(EntityMetadata<E> entity, MapValues values, List<String> target) {
+        final var record = (Entity<?>) entity.newInstance();
+        final var mapper = EntityMapper.of(entity.getType());
+        var row = new Object[target.size()];
+
+        record.readFrom(values);
+
+        if (mapper.isMapped()) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = mapper.get(entity.getType().cast(record), target.get(x));
+            }
+        } else {
+            var data = new MapValues();
+            record.writeTo(data);
+
+            for (int x = 0; x < row.length; x++) {
+                row[x] = data.get(target.get(x));
+            }
+        }
+
+        return row;
+    }
+
+    /**
+     * Inserts a chunk of rows (see Insert.split() for the statements used by
+     * every dialect)
+     */
+    private void write(ConnectionSource pinned, List<String> target, List<Object[]> chunk) throws SQLException {
+        var insert = Insert.query().table(table).columns(target.toArray(new String[0]));
+
+        chunk.forEach(insert::row);
+        connection.query(insert).on(pinned).runRows();
+    }
+
+    /**
+     * Puts a chunk in the queue of the next stage, waiting while it's full unless
+     * the import was cancelled
+     */
+    private static <E> void put(BlockingQueue<E> queue, E chunk, AtomicBoolean cancelled)
+            throws InterruptedException {
+        while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+            if (cancelled.get())
+                throw new CancellationException();
+        }
+    }
+}
@@ -3,9 +3,11 @@ package jstart.db;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Properties;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 public abstract class DBConnection {
@@ -15,33 +17,73 @@ public abstract class DBConnection {
     private static Map<String, DBConnection> connections;
 
     /**
-     * Connection object to database
+     * Source of connections to database (a single connection or a pool)
      */
-    private Connection conn;
+    private ConnectionSource source;
+
+    /**
+     * Opens new physical connections to the database
+     */
+    private ConnectionSource.Factory factory;
 
     /**
      * Select command instance by default for these connection
      */
     private Supplier<Select> selectInstance;
 
+    /**
+     * SQL dialect revealed by the select query object
+     */
+    private Dialect dialect;
+
     /**
      * Enclosing characters for tables, fields, etc.
      */
     private String[] enclosingCharacters;
 
+    /**
+     * Size and counters of the prepared statement caches of the connections
+     */
+    private final StatementCache.Config statementConfig;
+
+    /**
+     * Read replicas of the database (none by default)
+     */
+    private final Replicas replicas;
+
+    /**
+     * Active transaction of every thread
+     */
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
+
+    /**
+     * Cache of select query results (disabled by default)
+     */
+    private volatile QueryCache queryCache;
+
+    /**
+     * Execution statistics of the queries (disabled by default)
+     */
+    private volatile QueryStats queryStats;
+
     static {
-        connections = new HashMap<>();
+        connections = new ConcurrentHashMap<>();
     }
 
     private DBConnection() {
         selectInstance = Select::new;
+        dialect = Dialect.GENERIC;
         enclosingCharacters = new String[] { "", "" };
+        statementConfig = new StatementCache.Config();
+        replicas = new Replicas();
 
         Runtime.getRuntime().addShutdownHook(
                 new Thread(() -> {
                     try {
-                        if (conn != null)
-                            conn.close();
+                        if (source != null)
+                            source.close();
+
+                        replicas.close();
                     } catch (SQLException e) {
                         throw new RuntimeException(e);
                     }
@@ -56,7 +98,8 @@ public abstract class DBConnection {
      */
     protected DBConnection(String urlConn) throws SQLException {
         this();
-        conn = DriverManager.getConnection(urlConn);
+        factory = () -> DriverManager.getConnection(urlConn);
+        source = new ConnectionSource.Single(factory, statementConfig);
     }
 
     /**
@@ -68,7 +111,8 @@ public abstract class DBConnection {
      */
     protected DBConnection(String urlConn, Properties props) throws SQLException {
         this();
-        conn = DriverManager.getConnection(urlConn, props);
+        factory = () -> DriverManager.getConnection(urlConn, props);
+        source = new ConnectionSource.Single(factory, statementConfig);
     }
 
     /**
@@ -81,11 +125,360 @@ public abstract class DBConnection {
      */
     protected DBConnection(String urlConn, String username, String password) throws SQLException {
         this();
-        conn = DriverManager.getConnection(urlConn, username, password);
+        factory = () -> DriverManager.getConnection(urlConn, username, password);
+        source = new ConnectionSource.Single(factory, statementConfig);
     }
 
-    Connection getConnection() {
-        return conn;
+    /**
+     * Specify a DB url connection string to a pool of connections
+     * 
+     * @param urlConn
+     * @param options
+     * @throws SQLException
+     */
+    protected DBConnection(String urlConn, ConnectionPool.Options options) throws SQLException {
+        this();
+        factory = () -> DriverManager.getConnection(urlConn);
+        source = new ConnectionPool(factory, options, statementConfig);
+    }
+
+    /**
+     * Specify a DB url connection with properties to a pool of connections
+     * 
+     * @param urlConn
+     * @param props
+     * @param options
+     * @throws SQLException
+     */
+    protected DBConnection(String urlConn, Properties props, ConnectionPool.Options options) throws SQLException {
+        this();
+        factory = () -> DriverManager.getConnection(urlConn, props);
+        source = new ConnectionPool(factory, options, statementConfig);
+    }
+
+    /**
+     * Specify a DB url connection with an username and password to a pool of
+     * connections
+     * 
+     * @param urlConn
+     * @param username
+     * @param password
+     * @param options
+     * @throws SQLException
+     */
+    protected DBConnection(String urlConn, String username, String password, ConnectionPool.Options options)
+            throws SQLException {
+        this();
+        factory = () -> DriverManager.getConnection(urlConn, username, password);
+        source = new ConnectionPool(factory, options, statementConfig);
+    }
+
+    /**
+     * Source of the connections leased by queries
+     * 
+     * @return connection source
+     */
+    ConnectionSource getSource() {
+        return source;
+    }
+
+    /**
+     * Source of the connections of work that changes their state (autocommit
+     * off): the pool, or a source of dedicated connections if the connection
+     * isn't pooled, since its only connection is shared by all the threads
+     * 
+     * @return connection source
+     */
+    ConnectionSource getExclusiveSource() {
+        return source.isPooled() ? source : new ConnectionSource.Dedicated(factory, statementConfig);
+    }
+
+    /**
+     * Source of the connections of a select: a replica, or the primary database
+     * if there are no replicas or the thread must read its own writes
+     * 
+     * @return connection source
+     */
+    ConnectionSource getReadSource() {
+        final var replica = replicas.pick();
+        return replica != null ? replica : source;
+    }
+
+    /**
+     * Adds a read replica of the database: selects run outside a transaction are
+     * routed to the replicas, and writes to the primary database. It's pooled
+     * with the options of the primary database pool, if any
+     * 
+     * @param urlConn
+     * @return
+     * @throws SQLException
+     */
+    public DBConnection addReplica(String urlConn) throws SQLException {
+        return addReplica(() -> DriverManager.getConnection(urlConn));
+    }
+
+    /**
+     * Adds a read replica of the database with properties to driver manager
+     * 
+     * @param urlConn
+     * @param props
+     * @return
+     * @throws SQLException
+     */
+    public DBConnection addReplica(String urlConn, Properties props) throws SQLException {
+        return addReplica(() -> DriverManager.getConnection(urlConn, props));
+    }
+
+    /**
+     * Adds a read replica of the database with an username and password
+     * 
+     * @param urlConn
+     * @param username
+     * @param password
+     * @return
+     * @throws SQLException
+     */
+    public DBConnection addReplica(String urlConn, String username, String password) throws SQLException {
+        return addReplica(() -> DriverManager.getConnection(urlConn, username, password));
+    }
+
+    private DBConnection addReplica(ConnectionSource.Factory replica) throws SQLException {
+        replicas.add(source instanceof ConnectionPool
+                ? new ConnectionPool(replica, ((ConnectionPool) source).getOptions(), statementConfig)
+                : new ConnectionSource.Single(replica, statementConfig));
+
+        return this;
+    }
+
+    /**
+     * Sets how a replica is chosen for every read (round robin by default)
+     * 
+     * @param balancing balancing mode
+     * @return
+     */
+    public DBConnection setReplicaBalancing(Replicas.Balancing balancing) {
+        replicas.balancing(balancing);
+        return this;
+    }
+
+    /**
+     * Sets which reads go to the primary database to see previous writes. By
+     * default only the reads inside a transaction; with THREAD also the reads of
+     * a thread during a time window after it writes (the replication lag)
+     * 
+     * @param stickiness read-your-writes mode
+     * @param window     milliseconds a thread reads from the primary after a
+     *                   write (THREAD mode)
+     * @return
+     */
+    public DBConnection setReadYourWrites(Replicas.Stickiness stickiness, long window) {
+        replicas.stickiness(stickiness, window);
+        return this;
+    }
+
+    /**
+     * Returns the number of read replicas
+     * 
+     * @return number of replicas added with addReplica()
+     */
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    /**
+     * Notes a write of the current thread (see setReadYourWrites())
+     */
+    void written() {
+        replicas.written();
+    }
+
+    /**
+     * Opens a pool of dedicated connections to the same database, used to run
+     * queries in parallel when the connection isn't pooled. The caller closes
+     * the pool
+     * 
+     * @param size maximum number of connections
+     * @return pool object
+     * @throws SQLException
+     */
+    ConnectionPool openPool(int size) throws SQLException {
+        return new ConnectionPool(factory, ConnectionPool.Options.create().minSize(0).maxSize(size),
+                statementConfig);
+    }
+
+    /**
+     * Sets the maximum number of prepared statements cached by every connection
+     * (0 disables the cache, which is the default)
+     * 
+     * @param size statements per connection
+     * @return
+     */
+    public DBConnection setStatementCacheSize(int size) {
+        statementConfig.size = size;
+        return this;
+    }
+
+    /**
+     * Returns the hit/miss counters of the prepared statement caches
+     * 
+     * @return snapshot of the counters
+     */
+    public StatementCache.Stats getStatementCacheStats() {
+        return new StatementCache.Stats(statementConfig);
+    }
+
+    /**
+     * Enables the cache of select query results. Only queries marked with
+     * Query.cached() are cached, and results are invalidated when an insert,
+     * update or delete on one of their tables runs through this connection
+     * 
+     * @param maxRows    maximum number of cached rows of all results
+     * @param defaultTtl milliseconds a result stays in the cache (0 for no limit)
+     * @return
+     */
+    public DBConnection enableQueryCache(long maxRows, long defaultTtl) {
+        queryCache = new QueryCache(maxRows, defaultTtl);
+        return this;
+    }
+
+    /**
+     * Disables the cache of select query results
+     * 
+     * @return
+     */
+    public DBConnection disableQueryCache() {
+        queryCache = null;
+        return this;
+    }
+
+    /**
+     * Returns the counters of the cache of query results
+     * 
+     * @return snapshot of the counters or null if the cache isn't enabled
+     */
+    public QueryCache.Stats getQueryCacheStats() {
+        final var cache = queryCache;
+        return cache != null ? cache.getStats() : null;
+    }
+
+    QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Enables the execution statistics of the queries, grouped by SQL shape (see
+     * QueryStats). They only add a few counters to every query, so they can stay
+     * enabled in production
+     * 
+     * @return
+     */
+    public DBConnection enableQueryStats() {
+        if (queryStats == null)
+            queryStats = new QueryStats();
+
+        return this;
+    }
+
+    /**
+     * Disables the execution statistics of the queries (and the slow query log)
+     * 
+     * @return
+     */
+    public DBConnection disableQueryStats() {
+        queryStats = null;
+        return this;
+    }
+
+    /**
+     * Writes every query slower than a threshold, with its bound parameters, to
+     * a log. It enables the query statistics
+     * 
+     * @param threshold milliseconds (0 disables the log)
+     * @param log       receives a line for every slow query
+     * @return
+     */
+    public DBConnection setSlowQueryLog(long threshold, Consumer<String> log) {
+        enableQueryStats();
+        queryStats.slowQueryLog(threshold, log);
+        return this;
+    }
+
+    /**
+     * Returns the execution statistics of every SQL shape, from the most to the
+     * least total time
+     * 
+     * @return snapshot of the counters or null if the statistics aren't enabled
+     */
+    public List<QueryStats.Snapshot> getQueryStats() {
+        final var stats = queryStats;
+        return stats != null ? stats.getSnapshot() : null;
+    }
+
+    /**
+     * Clears the execution statistics of the queries
+     */
+    public void resetQueryStats() {
+        final var stats = queryStats;
+
+        if (stats != null)
+            stats.reset();
+    }
+
+    QueryStats getStats() {
+        return queryStats;
+    }
+
+    /**
+     * Begins a transaction bound to the current thread: its queries run on the
+     * same connection until the transaction is committed or rolled back (see
+     * Transaction). Without a pool, the transaction opens its own connection.
+     * Use it with try-with-resources, so it's rolled back if it
+     * isn't committed
+     * 
+     * @return transaction object
+     * @throws SQLException
+     */
+    public Transaction begin() throws SQLException {
+        if (transaction.get() != null)
+            throw new IllegalStateException("A transaction is already active in this thread");
+
+        final var tx = new Transaction(this, getExclusiveSource());
+
+        transaction.set(tx);
+
+        return tx;
+    }
+
+    /**
+     * Returns the transaction of the current thread
+     * 
+     * @return transaction object or null if there is no active transaction
+     */
+    public Transaction getTransaction() {
+        return transaction.get();
+    }
+
+    void endTransaction(Transaction tx) {
+        if (transaction.get() == tx)
+            transaction.remove();
+    }
+
+    /**
+     * Indicates if the connection works with a pool of connections
+     * 
+     * @return true if pooled
+     */
+    public boolean isPooled() {
+        return source.isPooled();
+    }
+
+    /**
+     * Returns the pool of connections, if any
+     * 
+     * @return pool object or null if it isn't a pooled connection
+     */
+    public ConnectionPool getPool() {
+        return source instanceof ConnectionPool ? (ConnectionPool) source : null;
     }
 
     /**
@@ -164,6 +557,77 @@ public abstract class DBConnection {
         return conn;
     }
 
+    /**
+     * Creates a new pooled connection with a name and a url connection string
+     * 
+     * @param name
+     * @param urlConn
+     * @param options pool configuration
+     * @return
+     * @throws SQLException
+     */
+    public static DBConnection create(String name, String urlConn, ConnectionPool.Options options)
+            throws SQLException {
+        if (connections.containsKey(name))
+            return connections.get(name);
+
+        var conn = new DBConnection(urlConn, options) {
+        };
+
+        connections.put(name, conn);
+
+        return conn;
+    }
+
+    /**
+     * Creates a new pooled connection with a name and a url connection string
+     * with a properties object
+     * 
+     * @param name
+     * @param urlConn
+     * @param props
+     * @param options pool configuration
+     * @return
+     * @throws SQLException
+     */
+    public static DBConnection create(String name, String urlConn, Properties props, ConnectionPool.Options options)
+            throws SQLException {
+        if (connections.containsKey(name))
+            return connections.get(name);
+
+        var conn = new DBConnection(urlConn, props, options) {
+        };
+
+        connections.put(name, conn);
+
+        return conn;
+    }
+
+    /**
+     * Creates a new pooled connection with a name and a url connection string and
+     * a username and password values
+     * 
+     * @param name
+     * @param urlConn
+     * @param username
+     * @param password
+     * @param options  pool configuration
+     * @return
+     * @throws SQLException
+     */
+    public static DBConnection create(String name, String urlConn, String username, String password,
+            ConnectionPool.Options options) throws SQLException {
+        if (connections.containsKey(name))
+            return connections.get(name);
+
+        var conn = new DBConnection(urlConn, username, password, options) {
+        };
+
+        connections.put(name, conn);
+
+        return conn;
+    }
+
     /**
      * Creates a new query object
      * 
@@ -173,6 +637,10 @@ public abstract class DBConnection {
     @SuppressWarnings("rawtypes")
     public Query query(Command command) {
         command.setEnclosingChars(getBeginEnclosingChar(), getEndEnclosingChar());
+
+        if (command instanceof Upsert && ((Upsert) command).getDialect() == null)
+            ((Upsert) command).dialect(dialect);
+
         return Query.with(this, command);
     }
 
@@ -185,6 +653,7 @@ public abstract class DBConnection {
      */
     public DBConnection setSelect(Supplier<Select> selectInstance) {
         this.selectInstance = selectInstance;
+        this.dialect = selectInstance.get().dialect();
         return this;
     }
 
@@ -211,6 +680,16 @@ public abstract class DBConnection {
         return selectInstance;
     }
 
+    /**
+     * Returns the SQL dialect of the connection (revealed by the select query
+     * object)
+     * 
+     * @return
+     */
+    public Dialect getDialect() {
+        return dialect;
+    }
+
     /**
      * @return the begin enclosing char
      */
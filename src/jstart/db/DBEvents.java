@@ -0,0 +1,101 @@
+package jstart.db;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events of the database layer, to see the time spent in
+ * JDBC next to GC and thread states in the same recording. Events are created
+ * and timed on every call, but that's optimized away by the JIT when they
+ * aren't recorded, and their fields (SQL shape, table...) are only filled if
+ * shouldCommit() is true
+ */
+final class DBEvents {
+    private DBEvents() {
+    }
+
+    /**
+     * Event of a query with its SQL shape, table and rows
+     */
+    @Category({ "JStart", "Database" })
+    @StackTrace(false)
+    abstract static class QueryEvent extends Event {
+        @Label("SQL")
+        @Description("SQL text with its literals replaced by ?")
+        String sql;
+
+        @Label("Table")
+        String table;
+
+        @Label("Rows")
+        long rows;
+
+        /**
+         * Ends the event and records it with its fields if it's enabled
+         *
+         * @param sql   SQL text (normalized only if the event is recorded) or null
+         * @param table table of the command
+         * @param rows  rows read or written
+         */
+        void commit(String sql, String table, long rows) {
+            end();
+
+            if (shouldCommit()) {
+                this.sql = sql != null ? QueryStats.shape(sql) : null;
+                this.table = table;
+                this.rows = rows;
+                commit();
+            }
+        }
+    }
+
+    @Name("jstart.db.ConnectionAcquire")
+    @Label("Connection Acquire")
+    @Description("Wait for a connection of the DBConnection (or its pool)")
+    @Category({ "JStart", "Database" })
+    @StackTrace(false)
+    static class Acquire extends Event {
+        @Label("Pooled")
+        boolean pooled;
+    }
+
+    @Name("jstart.db.StatementPrepare")
+    @Label("Statement Prepare")
+    @Description("Preparation of a statement, or its reuse from the statement cache")
+    static class Prepare extends QueryEvent {
+        @Label("Cached")
+        boolean cached;
+    }
+
+    @Name("jstart.db.Execute")
+    @Label("Query Execute")
+    @Description("Execution of a statement until its result set or update count is returned")
+    static class Execute extends QueryEvent {
+    }
+
+    @Name("jstart.db.Fetch")
+    @Label("Query Fetch")
+    @Description("Reading the rows of a result set and creating their records")
+    static class Fetch extends QueryEvent {
+    }
+
+    @Name("jstart.db.BatchFlush")
+    @Label("Batch Flush")
+    @Description("JDBC batch sent with executeBatch(), or writes of a transaction flushed as a batch")
+    static class Batch extends QueryEvent {
+        @Label("Operation")
+        String operation;
+    }
+
+    @Name("jstart.db.QueryCache")
+    @Label("Query Cache")
+    @Description("Lookup of a select result in the query cache")
+    static class Cache extends QueryEvent {
+        @Label("Hit")
+        boolean hit;
+    }
+}
@@ -0,0 +1,99 @@
+package jstart.db;
+
+/**
+ * SQL dialect of a database engine. It's revealed by the select query object
+ * of a connection (see classes in custom package) and used to choose
+ * engine-specific SQL and JDBC settings
+ */
+public enum Dialect {
+    GENERIC,
+    MYSQL,
+    SQLITE,
+    FIREBIRD,
+    SQLSERVER;
+
+    /**
+     * Fetch size to use when the rows of a query are streamed instead of loaded
+     * all at once
+     * 
+     * @param requested fetch size requested by the query (0 if none)
+     * @return fetch size for Statement.setFetchSize()
+     */
+    public int streamingFetchSize(int requested) {
+        switch (this) {
+            case MYSQL:
+                // MySQL Connector/J only streams row by row with this value
+                // (unless useCursorFetch=true and a positive fetch size is given)
+                return requested > 0 ? requested : Integer.MIN_VALUE;
+            default:
+                return requested > 0 ? requested : 1000;
+        }
+    }
+
+    /**
+     * Maximum number of bind parameters (?) accepted in a statement
+     * 
+     * @return number of parameters
+     */
+    public int maxParameters() {
+        switch (this) {
+            case SQLITE:
+                return 999; // SQLITE_MAX_VARIABLE_NUMBER before 3.32
+            case SQLSERVER:
+                return 2098; // 2100 including the parameters reserved by the driver
+            case MYSQL:
+                return 65535;
+            default:
+                return 32767;
+        }
+    }
+
+    /**
+     * Maximum number of values of an IN (...) list
+     * 
+     * @return number of values
+     */
+    public int maxInListSize() {
+        switch (this) {
+            case FIREBIRD:
+                return 1500; // Limit of IN lists before Firebird 5
+            default:
+                return maxParameters();
+        }
+    }
+
+    /**
+     * Maximum size of a statement (or of the input message of a Firebird
+     * EXECUTE BLOCK), used to split multi-row inserts
+     * 
+     * @return bytes per statement
+     */
+    public long maxStatementBytes() {
+        switch (this) {
+            case MYSQL:
+                return 4L * 1024 * 1024; // Default max_allowed_packet before 8.0
+            case FIREBIRD:
+                return 65535;
+            default:
+                return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Maximum number of rows of a multi-row INSERT ... VALUES (...),(...)
+     * statement
+     * 
+     * @return number of rows (1 if the engine doesn't support multi-row inserts)
+     */
+    public int maxInsertRows() {
+        switch (this) {
+            case MYSQL:
+            case SQLITE:
+                return Integer.MAX_VALUE;
+            case SQLSERVER:
+                return 1000; // Limit of the table value constructor
+            default:
+                return 1;
+        }
+    }
+}
@@ -1,40 +1,40 @@
 package jstart.db;
 
 import java.io.Serializable;
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
-
-import jstart.annotations.PrimaryKey;
-import jstart.annotations.RecordTable;
 
 /**
  * Base model for database entities (models)
  */
 public abstract class Entity<T> implements Serializable {
-    private transient final Class<T> genType;
-
-    @SuppressWarnings("unchecked")
     protected Entity() {
-        Type t = getClass().getGenericSuperclass();
-        ParameterizedType pt = (ParameterizedType) t;
-        genType = (Class<T>) pt.getActualTypeArguments()[0];
-
-        if (!getClass().isAnnotationPresent(RecordTable.class))
+        if (!metadata().hasTable())
             throw new RuntimeException("Data record table must be indicated whith @RecordTable annotation");
     }
 
+    /**
+     * Gets the metadata of the entity class (computed once per class)
+     * 
+     * @return metadata object
+     */
+    protected EntityMetadata<?> metadata() {
+        return EntityMetadata.of(getClass());
+    }
+
     /**
      * @return record table name from entity
      */
     public String table() {
-        return getClass().getAnnotation(RecordTable.class).table();
+        return metadata().getTable();
     }
 
     /**
      * @return primary key fields from entity
      */
     public String primaryKey() {
-        return getClass().getAnnotation(PrimaryKey.class).fields();
+        if (!metadata().hasPrimaryKey())
+            throw new NullPointerException("Entity %s has no @PrimaryKey annotation".formatted(getClass().getName()));
+
+        return metadata().getPrimaryKey();
     }
 
     /**
@@ -43,18 +43,20 @@ public abstract class Entity<T> implements Serializable {
      * @return
      */
     public boolean hasPrimaryKey() {
-        return getClass().isAnnotationPresent(PrimaryKey.class);
+        return metadata().hasPrimaryKey();
     }
 
     /**
-     * Reads data from a map to deserialize external data in entity
+     * Reads data from a map to deserialize external data in entity (see
+     * MappedEntity for entities with @Column annotated fields)
      * 
      * @param data
      */
     public abstract void readFrom(MapValues data);
 
     /**
-     * Writes data to a map to serialize internal data out of entity
+     * Writes data to a map to serialize internal data out of entity (see
+     * MappedEntity for entities with @Column annotated fields)
      * 
      * @param data
      */
@@ -69,7 +71,12 @@ public abstract class Entity<T> implements Serializable {
     @SuppressWarnings("unchecked")
     public Entity<T> copy() {
         try {
-            var o = (Entity<T>) genType.getConstructor().newInstance();
+            var o = (Entity<T>) metadata().newInstance();
+            var mapper = EntityMapper.of((Class<Entity<T>>) getClass());
+
+            if (mapper.isMapped() && o.getClass() == getClass())
+                return mapper.copy(this, o);
+
             var m = new MapValues();
 
             writeTo(m);
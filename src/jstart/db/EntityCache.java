@@ -0,0 +1,243 @@
+package jstart.db;
+
+import java.util.LinkedHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Size-bounded LRU cache of entities keyed by primary key, with an optional
+ * time to live. Entities are stored and returned as copies, so callers cannot
+ * modify the cached objects
+ *
+ * @param <T> entity class
+ */
+public class EntityCache<T> {
+    /**
+     * Snapshot of the cache counters
+     */
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long expirations;
+        private final int size;
+
+        private Stats(long hits, long misses, long evictions, long expirations, int size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.size = size;
+        }
+
+        /**
+         * @return number of lookups served from the cache
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return number of lookups not found (or expired) in the cache
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return number of entries removed to keep the size bound
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * @return number of entries removed because their time to live expired
+         */
+        public long getExpirations() {
+            return expirations;
+        }
+
+        /**
+         * @return number of cached entities
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return ratio of hits over all lookups (0 if there are no lookups)
+         */
+        public double getHitRatio() {
+            final long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return "size=%d, hits=%d, misses=%d, evictions=%d, expirations=%d"
+                    .formatted(size, hits, misses, evictions, expirations);
+        }
+    }
+
+    private static class Entry<T> {
+        final T value;
+        final long expires;
+
+        Entry(T value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttl;
+    private final UnaryOperator<T> copier;
+    private final LinkedHashMap<Object, Entry<T>> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    private long version;
+
+    /**
+     * Creates an entity cache
+     *
+     * @param maxSize maximum number of cached entities
+     * @param ttl     milliseconds an entity stays in the cache (0 for no limit)
+     * @param copier  creates a copy of an entity
+     */
+    public EntityCache(int maxSize, long ttl, UnaryOperator<T> copier) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("Cache size must be greater than 0");
+
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.copier = copier;
+        this.entries = new LinkedHashMap<>(Math.min(maxSize, 1024) * 2, 0.75f, true);
+    }
+
+    /**
+     * Normalizes a key, so equal integral numbers of different types (Integer,
+     * Long...) are the same key
+     */
+    static Object normalize(Object key) {
+        if (key instanceof Integer || key instanceof Short || key instanceof Byte)
+            return ((Number) key).longValue();
+
+        return key;
+    }
+
+    /**
+     * Gets a copy of a cached entity
+     *
+     * @param key primary key value
+     * @return copy of the entity or null if it isn't cached
+     */
+    public T get(Object key) {
+        final T value;
+
+        synchronized (this) {
+            final var normalized = normalize(key);
+            final var entry = entries.get(normalized);
+
+            if (entry != null && ttl > 0 && entry.expires < System.currentTimeMillis()) {
+                entries.remove(normalized);
+                expirations++;
+                misses++;
+                return null;
+            }
+
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+
+            hits++;
+            value = entry.value;
+        }
+
+        return copier.apply(value);
+    }
+
+    /**
+     * Stores a copy of an entity
+     *
+     * @param key    primary key value
+     * @param entity entity object
+     */
+    public void put(Object key, T entity) {
+        final var copy = copier.apply(entity);
+        final long expires = ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE;
+
+        synchronized (this) {
+            store(key, new Entry<>(copy, expires));
+        }
+    }
+
+    /**
+     * Stores a copy of an entity read from the database, unless an entity was
+     * invalidated since the read started (it could be stale)
+     *
+     * @param key     primary key value
+     * @param entity  entity object
+     * @param version version of the cache before the read (see version())
+     */
+    void put(Object key, T entity, long version) {
+        final var copy = copier.apply(entity);
+        final long expires = ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE;
+
+        synchronized (this) {
+            if (this.version != version)
+                return;
+
+            store(key, new Entry<>(copy, expires));
+        }
+    }
+
+    private void store(Object key, Entry<T> entry) {
+        entries.put(normalize(key), entry);
+
+        var it = entries.values().iterator();
+
+        while (entries.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Gets the current version of the cache, increased by every invalidation, to
+     * detect writes happening while an entity is read
+     *
+     * @return version
+     */
+    synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Removes an entity from the cache
+     *
+     * @param key primary key value
+     */
+    public synchronized void invalidate(Object key) {
+        entries.remove(normalize(key));
+        version++;
+    }
+
+    /**
+     * Removes all entities from the cache
+     */
+    public synchronized void clear() {
+        entries.clear();
+        version++;
+    }
+
+    /**
+     * @return snapshot of the cache counters
+     */
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, evictions, expirations, entries.size());
+    }
+}
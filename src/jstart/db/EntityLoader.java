@@ -0,0 +1,207 @@
+package jstart.db;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loads entities by primary key coalescing the requests of many threads (like
+ * DataLoader): keys requested within a short window, or until a number of keys
+ * is reached, are read together with Repository.selectByIds(). A key already
+ * requested and not loaded yet isn't requested again: its callers share the
+ * same future (and entity object). See Repository.enableCoalescing()
+ *
+ * @param <T> entity class
+ */
+public class EntityLoader<T extends Entity<T>> {
+    /**
+     * Options of a loader
+     */
+    public static class Options {
+        private long window = 1;
+        private int maxBatch = 256;
+
+        private Options() {
+        }
+
+        /**
+         * Creates the default options: 1 millisecond window and batches of up to
+         * 256 keys
+         *
+         * @return options object
+         */
+        public static Options create() {
+            return new Options();
+        }
+
+        /**
+         * @param ms milliseconds the first key of a batch waits for more keys
+         * @return options object
+         */
+        public Options window(long ms) {
+            this.window = ms;
+            return this;
+        }
+
+        /**
+         * @param maxBatch keys that make a batch run without waiting for the end
+         *                 of the window
+         * @return options object
+         */
+        public Options maxBatch(int maxBatch) {
+            this.maxBatch = maxBatch;
+            return this;
+        }
+    }
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        var thread = new Thread(r, "jstart-loader-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        var thread = new Thread(r, "jstart-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Repository<T> repository;
+    private final Options options;
+    private final Object lock;
+    private final Map<Object, CompletableFuture<T>> inFlight;
+    private final LongAdder requests;
+    private final LongAdder batches;
+    private Map<Object, Object> batch;
+    private ScheduledFuture<?> scheduled;
+
+    EntityLoader(Repository<T> repository, Options options) {
+        if (options.maxBatch < 1 || options.window < 0)
+            throw new IllegalArgumentException("Invalid loader options (window %d, batch %d)"
+                    .formatted(options.window, options.maxBatch));
+
+        this.repository = repository;
+        this.options = options;
+        this.lock = new Object();
+        this.inFlight = new HashMap<>();
+        this.requests = new LongAdder();
+        this.batches = new LongAdder();
+        this.batch = new LinkedHashMap<>();
+    }
+
+    /**
+     * Requests an entity by its primary key
+     *
+     * @param id primary key value
+     * @return future completed with the entity, or null if it doesn't exist
+     */
+    public CompletableFuture<T> load(Object id) {
+        final var key = EntityCache.normalize(id);
+        final CompletableFuture<T> future;
+        Map<Object, Object> ready = null;
+
+        requests.increment();
+
+        synchronized (lock) {
+            final var running = inFlight.get(key);
+
+            if (running != null) // Same key pending: the request is shared
+                return running;
+
+            future = new CompletableFuture<>();
+            inFlight.put(key, future);
+            batch.put(key, id);
+
+            if (batch.size() >= options.maxBatch)
+                ready = take();
+            else if (batch.size() == 1)
+                scheduled = timer.schedule(this::dispatch, options.window, TimeUnit.MILLISECONDS);
+        }
+
+        if (ready != null) {
+            final var keys = ready;
+            executor.execute(() -> run(keys));
+        }
+
+        return future;
+    }
+
+    /**
+     * @return number of entities requested with load()
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return number of queries run for the requests
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * Takes the keys of the current batch (with the lock held)
+     */
+    private Map<Object, Object> take() {
+        final var ready = batch;
+
+        batch = new LinkedHashMap<>();
+
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+
+        return ready;
+    }
+
+    /**
+     * Runs the current batch at the end of its window
+     */
+    private void dispatch() {
+        final Map<Object, Object> ready;
+
+        synchronized (lock) {
+            if (batch.isEmpty())
+                return;
+
+            ready = take();
+        }
+
+        executor.execute(() -> run(ready));
+    }
+
+    /**
+     * Reads a batch of keys and completes their futures
+     */
+    private void run(Map<Object, Object> keys) {
+        batches.increment();
+
+        try {
+            final var found = repository.selectByIds(keys.values());
+
+            keys.forEach((key, id) -> complete(key).complete(found.get(id)));
+        } catch (RuntimeException e) {
+            keys.forEach((key, id) -> {
+                final var future = complete(key);
+
+                if (future != null)
+                    future.completeExceptionally(e);
+            });
+        }
+    }
+
+    private CompletableFuture<T> complete(Object key) {
+        synchronized (lock) {
+            return inFlight.remove(key);
+        }
+    }
+}
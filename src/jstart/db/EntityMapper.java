@@ -0,0 +1,649 @@
+package jstart.db;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jstart.Convert;
+import jstart.annotations.Column;
+
+/**
+ * Compiled mapper of an entity class with @Column annotated fields. Fields are
+ * accessed through var handles resolved once per class, typed columns are read
+ * straight from the result set into the fields (getInt, getLong,
+ * getTimestamp...) and fields are bound straight into prepared statements, with
+ * no intermediate map and no boxing of primitive fields
+ *
+ * @param <T> entity class
+ */
+public final class EntityMapper<T> {
+    /**
+     * Typed access to a mapped field
+     */
+    abstract static class Binding {
+        final String column;
+        final VarHandle handle;
+
+        Binding(String column, VarHandle handle) {
+            this.column = column;
+            this.handle = handle;
+        }
+
+        abstract void read(ResultSet rs, int index, Object target) throws SQLException;
+
+        abstract void bind(PreparedStatement ps, int index, Object source) throws SQLException;
+
+        abstract void readMap(MapValues data, Object target);
+
+        abstract void copy(Object from, Object to);
+
+        Object get(Object source) {
+            return handle.get(source);
+        }
+    }
+
+    private static class IntBinding extends Binding {
+        IntBinding(String column, VarHandle handle) {
+            super(column, handle);
+        }
+
+        @Override
+        void read(ResultSet rs, int index, Object target) throws SQLException {
+            handle.set(target, rs.getInt(index));
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Object source) throws SQLException {
+            ps.setInt(index, (int) handle.get(source));
+        }
+
+        @Override
+        void readMap(MapValues data, Object target) {
+            var value = data.getInteger(column);
+            handle.set(target, value != null ? value.intValue() : 0);
+        }
+
+        @Override
+        void copy(Object from, Object to) {
+            handle.set(to, (int) handle.get(from));
+        }
+    }
+
+    private static class LongBinding extends Binding {
+        LongBinding(String column, VarHandle handle) {
+            super(column, handle);
+        }
+
+        @Override
+        void read(ResultSet rs, int index, Object target) throws SQLException {
+            handle.set(target, rs.getLong(index));
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Object source) throws SQLException {
+            ps.setLong(index, (long) handle.get(source));
+        }
+
+        @Override
+        void readMap(MapValues data, Object target) {
+            var value = data.getLong(column);
+            handle.set(target, value != null ? value.longValue() : 0L);
+        }
+
+        @Override
+        void copy(Object from, Object to) {
+            handle.set(to, (long) handle.get(from));
+        }
+    }
+
+    private static class DoubleBinding extends Binding {
+        DoubleBinding(String column, VarHandle handle) {
+            super(column, handle);
+        }
+
+        @Override
+        void read(ResultSet rs, int index, Object target) throws SQLException {
+            handle.set(target, rs.getDouble(index));
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Object source) throws SQLException {
+            ps.setDouble(index, (double) handle.get(source));
+        }
+
+        @Override
+        void readMap(MapValues data, Object target) {
+            var value = data.getDouble(column);
+            handle.set(target, value != null ? value.doubleValue() : 0d);
+        }
+
+        @Override
+        void copy(Object from, Object to) {
+            handle.set(to, (double) handle.get(from));
+        }
+    }
+
+    private static class FloatBinding extends Binding {
+        FloatBinding(String column, VarHandle handle) {
+            super(column, handle);
+        }
+
+        @Override
+        void read(ResultSet rs, int index, Object target) throws SQLException {
+            handle.set(target, rs.getFloat(index));
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Object source) throws SQLException {
+            ps.setFloat(index, (float) handle.get(source));
+        }
+
+        @Override
+        void readMap(MapValues data, Object target) {
+            var value = data.getFloat(column);
+            handle.set(target, value != null ? value.floatValue() : 0f);
+        }
+
+        @Override
+        void copy(Object from, Object to) {
+            handle.set(to, (float) handle.get(from));
+        }
+    }
+
+    private static class ShortBinding extends Binding {
+        ShortBinding(String column, VarHandle handle) {
+            super(column, handle);
+        }
+
+        @Override
+        void read(ResultSet rs, int index, Object target) throws SQLException {
+            handle.set(target, rs.getShort(index));
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Object source) throws SQLException {
+            ps.setShort(index, (short) handle.get(source));
+        }
+
+        @Override
+        void readMap(MapValues data, Object target) {
+            var value = data.getShort(column);
+            handle.set(target, value != null ? value.shortValue() : (short) 0);
+        }
+
+        @Override
+        void copy(Object from, Object to) {
+            handle.set(to, (short) handle.get(from));
+        }
+    }
+
+    private static class ByteBinding extends Binding {
+        ByteBinding(String column, VarHandle handle) {
+            super(column, handle);
+        }
+
+        @Override
+        void read(ResultSet rs, int index, Object target) throws SQLException {
+            handle.set(target, rs.getByte(index));
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Object source) throws SQLException {
+            ps.setByte(index, (byte) handle.get(source));
+        }
+
+        @Override
+        void readMap(MapValues data, Object target) {
+            var value = data.getByte(column);
+            handle.set(target, value != null ? value.byteValue() : (byte) 0);
+        }
+
+        @Override
+        void copy(Object from, Object to) {
+            handle.set(to, (byte) handle.get(from));
+        }
+    }
+
+    private static class BooleanBinding extends Binding {
+        BooleanBinding(String column, VarHandle handle) {
+            super(column, handle);
+        }
+
+        @Override
+        void read(ResultSet rs, int index, Object target) throws SQLException {
+            handle.set(target, rs.getBoolean(index));
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Object source) throws SQLException {
+            ps.setBoolean(index, (boolean) handle.get(source));
+        }
+
+        @Override
+        void readMap(MapValues data, Object target) {
+            var value = data.getBoolean(column);
+            handle.set(target, value != null && value.booleanValue());
+        }
+
+        @Override
+        void copy(Object from, Object to) {
+            handle.set(to, (boolean) handle.get(from));
+        }
+    }
+
+    /**
+     * Reference typed field (strings, dates, boxed numbers...)
+     */
+    private static class ObjectBinding extends Binding {
+        private final Class<?> type;
+        private final int sqlType;
+
+        ObjectBinding(String column, VarHandle handle, Class<?> type) {
+            super(column, handle);
+            this.type = type;
+            this.sqlType = sqlTypeOf(type);
+        }
+
+        @Override
+        void read(ResultSet rs, int index, Object target) throws SQLException {
+            handle.set(target, fetch(rs, index));
+        }
+
+        private Object fetch(ResultSet rs, int index) throws SQLException {
+            if (type == String.class)
+                return rs.getString(index);
+            if (type == Timestamp.class)
+                return rs.getTimestamp(index);
+            if (type == LocalDateTime.class) {
+                var ts = rs.getTimestamp(index);
+                return ts != null ? ts.toLocalDateTime() : null;
+            }
+            if (type == Date.class)
+                return rs.getDate(index);
+            if (type == LocalDate.class) {
+                var date = rs.getDate(index);
+                return date != null ? date.toLocalDate() : null;
+            }
+            if (type == BigDecimal.class)
+                return rs.getBigDecimal(index);
+
+            return convert(rs.getObject(index));
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Object source) throws SQLException {
+            final var value = handle.get(source);
+
+            if (value == null)
+                ps.setNull(index, sqlType);
+            else if (value instanceof LocalDateTime)
+                ps.setTimestamp(index, Timestamp.valueOf((LocalDateTime) value));
+            else if (value instanceof LocalDate)
+                ps.setDate(index, Date.valueOf((LocalDate) value));
+            else
+                ps.setObject(index, value);
+        }
+
+        @Override
+        void readMap(MapValues data, Object target) {
+            final Object value;
+
+            if (type == LocalDateTime.class)
+                value = data.getLocalDateTime(column);
+            else if (type == LocalDate.class)
+                value = data.getLocalDate(column);
+            else
+                value = convert(data.getObject(column));
+
+            handle.set(target, value);
+        }
+
+        @Override
+        void copy(Object from, Object to) {
+            handle.set(to, handle.get(from));
+        }
+
+        private Object convert(Object value) {
+            if (value == null || type.isInstance(value))
+                return value;
+            if (type == Integer.class)
+                return Convert.from(value).toInteger();
+            if (type == Long.class)
+                return Convert.from(value).toLong();
+            if (type == Double.class)
+                return Convert.from(value).toDouble();
+            if (type == Float.class)
+                return Convert.from(value).toFloat();
+            if (type == Short.class)
+                return Convert.from(value).toShort();
+            if (type == Byte.class)
+                return Convert.from(value).toByte();
+            if (type == Boolean.class)
+                return Convert.from(value).toBoolean();
+            if (type == String.class)
+                return value.toString();
+
+            return type.cast(value);
+        }
+
+        private static int sqlTypeOf(Class<?> type) {
+            if (type == String.class)
+                return Types.VARCHAR;
+            if (type == Integer.class)
+                return Types.INTEGER;
+            if (type == Long.class)
+                return Types.BIGINT;
+            if (type == Double.class)
+                return Types.DOUBLE;
+            if (type == Float.class)
+                return Types.FLOAT;
+            if (type == Short.class)
+                return Types.SMALLINT;
+            if (type == Byte.class)
+                return Types.TINYINT;
+            if (type == Boolean.class)
+                return Types.BOOLEAN;
+            if (type == Timestamp.class || type == LocalDateTime.class)
+                return Types.TIMESTAMP;
+            if (type == Date.class || type == LocalDate.class)
+                return Types.DATE;
+            if (type == BigDecimal.class)
+                return Types.DECIMAL;
+
+            return Types.OTHER;
+        }
+    }
+
+    /**
+     * Reads the rows of a result set into entities. Column positions are
+     * resolved once per result set
+     */
+    public final class Reader {
+        private final Binding[] bindings;
+        private final int[] indexes;
+
+        private Reader(RowValues.Layout layout) {
+            var found = new ArrayList<Binding>();
+            var positions = new ArrayList<Integer>();
+
+            for (var binding : EntityMapper.this.bindings) {
+                int index = layout.indexOf(binding.column);
+
+                if (index >= 0) {
+                    found.add(binding);
+                    positions.add(index + 1);
+                }
+            }
+
+            this.bindings = found.toArray(new Binding[0]);
+            this.indexes = positions.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        /**
+         * Reads the current row into an entity
+         *
+         * @param rs     result set positioned on a row
+         * @param target entity object
+         * @return the entity object
+         * @throws SQLException
+         */
+        public T read(ResultSet rs, T target) throws SQLException {
+            for (int x = 0; x < bindings.length; x++) {
+                bindings[x].read(rs, indexes[x], target);
+            }
+
+            return target;
+        }
+    }
+
+    /**
+     * Binds entity fields into the parameters of a prepared statement, in a
+     * fixed column order
+     */
+    public final class Writer {
+        private final Binding[] bindings;
+
+        private Writer(List<String> columns) {
+            this.bindings = new Binding[columns.size()];
+
+            for (int x = 0; x < bindings.length; x++) {
+                bindings[x] = byColumn.get(columns.get(x));
+
+                if (bindings[x] == null)
+                    throw new IllegalArgumentException("Column %s isn't mapped in %s"
+                            .formatted(columns.get(x), type.getName()));
+            }
+        }
+
+        /**
+         * Binds the fields of an entity starting at parameter 1
+         *
+         * @param ps     prepared statement
+         * @param source entity object
+         * @throws SQLException
+         */
+        public void bind(PreparedStatement ps, T source) throws SQLException {
+            for (int x = 0; x < bindings.length; x++) {
+                bindings[x].bind(ps, x + 1, source);
+            }
+        }
+    }
+
+    private static final Map<Class<?>, EntityMapper<?>> mappers = new ConcurrentHashMap<>();
+
+    private final Class<T> type;
+    private final Binding[] bindings;
+    private final Map<String, Binding> byColumn;
+    private final List<String> columns;
+    private final boolean compiled;
+    private final Map<List<String>, Writer> writers;
+
+    private EntityMapper(Class<T> type) {
+        this.type = type;
+        this.byColumn = new LinkedHashMap<>();
+        this.writers = new ConcurrentHashMap<>();
+
+        try {
+            var lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+
+            for (Class<?> c = type; c != null && c != Entity.class; c = c.getSuperclass()) {
+                for (var field : c.getDeclaredFields()) {
+                    var column = field.getAnnotation(Column.class);
+
+                    if (column == null || Modifier.isStatic(field.getModifiers()))
+                        continue;
+
+                    var name = column.name().isEmpty() ? field.getName() : column.name();
+
+                    byColumn.putIfAbsent(name, binding(name, field,
+                            MethodHandles.privateLookupIn(c, lookup).unreflectVarHandle(field)));
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+
+        this.bindings = byColumn.values().toArray(new Binding[0]);
+        this.columns = Collections.unmodifiableList(new ArrayList<>(byColumn.keySet()));
+        this.compiled = bindings.length > 0 && MappedEntity.class.isAssignableFrom(type)
+                && inherits(type, "readFrom") && inherits(type, "writeTo");
+    }
+
+    private static Binding binding(String column, Field field, VarHandle handle) {
+        var type = field.getType();
+
+        if (type == int.class)
+            return new IntBinding(column, handle);
+        if (type == long.class)
+            return new LongBinding(column, handle);
+        if (type == double.class)
+            return new DoubleBinding(column, handle);
+        if (type == float.class)
+            return new FloatBinding(column, handle);
+        if (type == short.class)
+            return new ShortBinding(column, handle);
+        if (type == byte.class)
+            return new ByteBinding(column, handle);
+        if (type == boolean.class)
+            return new BooleanBinding(column, handle);
+        if (type.isPrimitive())
+            throw new IllegalArgumentException("Unsupported column field type: " + type);
+
+        return new ObjectBinding(column, handle, type);
+    }
+
+    /**
+     * Returns the (cached) mapper of an entity class
+     *
+     * @param type entity class
+     * @return mapper object
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> EntityMapper<T> of(Class<T> type) {
+        return (EntityMapper<T>) mappers.computeIfAbsent(type, EntityMapper::new);
+    }
+
+    /**
+     * Indicates if an entity class is read and written by its compiled mapper
+     * (see isMapped())
+     *
+     * @param type entity class
+     * @return true if the class is mapped
+     */
+    public static boolean isMapped(Class<?> type) {
+        return of(type).isMapped();
+    }
+
+    /**
+     * Indicates if the class is read and written by this mapper: a MappedEntity
+     * with @Column annotated fields that doesn't override readFrom() or
+     * writeTo() (hand-written methods take precedence)
+     *
+     * @return true if the class is mapped
+     */
+    public boolean isMapped() {
+        return compiled;
+    }
+
+    /**
+     * @return true if the class has @Column annotated fields
+     */
+    public boolean hasColumns() {
+        return bindings.length > 0;
+    }
+
+    private static boolean inherits(Class<?> type, String method) {
+        try {
+            return type.getMethod(method, MapValues.class).getDeclaringClass() == MappedEntity.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return mapped column names in declaration order
+     */
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /**
+     * Creates a reader for a result set column layout
+     *
+     * @param layout column layout of the result set
+     * @return reader object
+     */
+    public Reader reader(RowValues.Layout layout) {
+        return new Reader(layout);
+    }
+
+    /**
+     * Gets a writer binding a list of columns (in that order). Writers are
+     * cached per column list
+     *
+     * @param columns mapped column names
+     * @return writer object
+     */
+    public Writer writer(List<String> columns) {
+        var writer = writers.get(columns);
+
+        if (writer == null) {
+            writer = new Writer(columns);
+            writers.putIfAbsent(List.copyOf(columns), writer);
+        }
+
+        return writer;
+    }
+
+    /**
+     * Gets the value of a mapped column of an entity
+     *
+     * @param source entity object
+     * @param column column name
+     * @return field value
+     */
+    public Object get(T source, String column) {
+        var binding = byColumn.get(column);
+
+        if (binding == null)
+            throw new IllegalArgumentException("Column %s isn't mapped in %s".formatted(column, type.getName()));
+
+        return binding.get(source);
+    }
+
+    /**
+     * Sets the fields of an entity from a map of values
+     *
+     * @param data   map of values
+     * @param target entity object
+     */
+    public void readFrom(MapValues data, T target) {
+        for (var binding : bindings) {
+            if (data.containsKey(binding.column))
+                binding.readMap(data, target);
+        }
+    }
+
+    /**
+     * Writes the fields of an entity to a map of values
+     *
+     * @param source entity object
+     * @param data   map of values
+     */
+    public void writeTo(T source, MapValues data) {
+        for (var binding : bindings) {
+            data.put(binding.column, binding.get(source));
+        }
+    }
+
+    /**
+     * Copies the mapped fields of an entity into another one
+     *
+     * @param from source entity
+     * @param to   target entity
+     * @return target entity
+     */
+    public T copy(T from, T to) {
+        for (var binding : bindings) {
+            binding.copy(from, to);
+        }
+
+        return to;
+    }
+}
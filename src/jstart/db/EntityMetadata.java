@@ -0,0 +1,156 @@
+package jstart.db;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.ParameterizedType;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jstart.annotations.PrimaryKey;
+import jstart.annotations.RecordTable;
+
+/**
+ * Metadata of an entity class (table name, key columns, mapped columns and
+ * constructor), computed once per class and kept in a registry, so repositories
+ * don't need reflection or throwaway entity instances on every call
+ *
+ * @param <T> entity class
+ */
+public final class EntityMetadata<T> {
+    private static final Map<Class<?>, EntityMetadata<?>> registry = new ConcurrentHashMap<>();
+
+    private final Class<T> type;
+    private final Class<?> genericType;
+    private final String table;
+    private final String primaryKey;
+    private final List<String> keyColumns;
+    private final MethodHandle constructor;
+
+    private EntityMetadata(Class<T> type) {
+        this.type = type;
+
+        var superclass = type.getGenericSuperclass();
+        this.genericType = superclass instanceof ParameterizedType
+                && ((ParameterizedType) superclass).getActualTypeArguments()[0] instanceof Class
+                        ? (Class<?>) ((ParameterizedType) superclass).getActualTypeArguments()[0]
+                        : type;
+
+        var recordTable = type.getAnnotation(RecordTable.class);
+        this.table = recordTable != null ? recordTable.table() : null;
+
+        var pk = type.getAnnotation(PrimaryKey.class);
+        this.primaryKey = pk != null ? pk.fields() : null;
+        this.keyColumns = pk != null
+                ? Collections.unmodifiableList(Arrays.asList(pk.fields().replace(" ", "").split(",")))
+                : Collections.emptyList();
+
+        MethodHandle ctor;
+
+        try {
+            ctor = MethodHandles.publicLookup().findConstructor(genericType, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            ctor = null; // Only needed to create new instances
+        }
+
+        this.constructor = ctor;
+    }
+
+    /**
+     * Returns the (cached) metadata of an entity class
+     *
+     * @param type entity class
+     * @return metadata object
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> EntityMetadata<T> of(Class<T> type) {
+        var metadata = (EntityMetadata<T>) registry.get(type);
+
+        if (metadata == null)
+            metadata = (EntityMetadata<T>) registry.computeIfAbsent(type, EntityMetadata::new);
+
+        return metadata;
+    }
+
+    /**
+     * @return entity class
+     */
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * @return class given as generic argument of Entity (the class created by
+     *         newInstance())
+     */
+    public Class<?> getGenericType() {
+        return genericType;
+    }
+
+    /**
+     * @return record table name (null if the class has no @RecordTable)
+     */
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * @return true if the class has a @RecordTable annotation
+     */
+    public boolean hasTable() {
+        return table != null;
+    }
+
+    /**
+     * @return primary key fields as written in @PrimaryKey (null if none)
+     */
+    public String getPrimaryKey() {
+        return primaryKey;
+    }
+
+    /**
+     * @return true if the class has a @PrimaryKey annotation
+     */
+    public boolean hasPrimaryKey() {
+        return primaryKey != null;
+    }
+
+    /**
+     * @return list of primary key columns
+     */
+    public List<String> getKeyColumns() {
+        return keyColumns;
+    }
+
+    /**
+     * @return columns of @Column annotated fields (empty if the entity is not
+     *         mapped)
+     */
+    public List<String> getColumns() {
+        return EntityMapper.of(type).getColumns();
+    }
+
+    /**
+     * Creates a new entity object with the public no-args constructor
+     *
+     * @return new entity
+     */
+    @SuppressWarnings("unchecked")
+    public T newInstance() {
+        if (constructor == null)
+            throw new IllegalStateException("%s needs a public constructor without arguments"
+                    .formatted(genericType.getName()));
+
+        try {
+            return (T) constructor.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
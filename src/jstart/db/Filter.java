@@ -2,7 +2,10 @@ package jstart.db;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -26,7 +29,17 @@ public class Filter {
         }
     }
 
+    /**
+     * Sizes of IN lists in parameterized filters (lists are padded up to the next
+     * size to limit the number of distinct statements)
+     */
+    private static final int[] IN_BUCKETS = { 1, 4, 16, 64, 256, 1024 };
+
     private final StringBuilder filter;
+    private boolean parameterized;
+    private List<Object> parameters;
+    private Set<String> tables;
+    private boolean placeholders;
 
     private Filter() {
         filter = new StringBuilder();
@@ -41,6 +54,154 @@ public class Filter {
         return new Filter();
     }
 
+    /**
+     * Create a new parameterized filter: values of conditions are rendered as ?
+     * placeholders and bound automatically by the command, so the SQL text is
+     * the same for any value (and values don't need quoting). The values bound
+     * with param() of the command go before those of the filter, so a "?"
+     * placeholder written in the filter can't follow a bound value
+     * (IllegalStateException)
+     * 
+     * @return filter object
+     */
+    public static Filter params() {
+        return new Filter().parameterized();
+    }
+
+    /**
+     * Renders the values of the next conditions as ? placeholders bound by the
+     * command (instead of inlined literals)
+     * 
+     * @return filter object
+     */
+    public Filter parameterized() {
+        this.parameterized = true;
+        return this;
+    }
+
+    /**
+     * Indicates if the values of the filter are bound as parameters
+     * 
+     * @return true if the filter is parameterized
+     */
+    public boolean isParameterized() {
+        return parameterized;
+    }
+
+    /**
+     * Gets the values bound to the placeholders of the filter (in order)
+     * 
+     * @return list of values (empty if there are no bound values)
+     */
+    List<Object> getParameters() {
+        return parameters != null ? parameters : List.of();
+    }
+
+    private void addParameter(Object value) {
+        if (parameters == null)
+            parameters = new ArrayList<>();
+
+        parameters.add(value);
+    }
+
+    /**
+     * Gets the normalized names of the tables read by the subselects of the
+     * filter (for query cache invalidation; subselects written as SQL text
+     * aren't known)
+     * 
+     * @return set of table names (empty if there are no subselects)
+     */
+    Set<String> getTables() {
+        return tables != null ? tables : Set.of();
+    }
+
+    private void addTables(Set<String> names) {
+        if (!names.isEmpty()) {
+            if (tables == null)
+                tables = new HashSet<>();
+
+            tables.addAll(names);
+        }
+    }
+
+    /**
+     * Indicates if the filter has ? placeholders bound with param() of the
+     * command (not by the filter)
+     */
+    boolean hasPlaceholders() {
+        return placeholders;
+    }
+
+    /**
+     * Registers a ? placeholder bound with param() of the command. Those values
+     * are bound before the values of the filter, so they can't follow them
+     */
+    private void addPlaceholder() {
+        if (parameters != null && !parameters.isEmpty())
+            throw new IllegalStateException(
+                    "A ? placeholder bound with param() can't follow the values bound by the filter");
+
+        placeholders = true;
+    }
+
+    /**
+     * Indicates if a SQL text has ? placeholders (out of string literals)
+     */
+    private static boolean hasPlaceholder(String text) {
+        boolean literal = false;
+
+        for (int x = 0; x < text.length(); x++) {
+            final char c = text.charAt(x);
+
+            if (c == '\'')
+                literal = !literal;
+            else if (c == '?' && !literal)
+                return true;
+        }
+
+        return false;
+    }
+
+    private void addParameters(List<Object> values) {
+        if (!values.isEmpty()) {
+            if (parameters == null)
+                parameters = new ArrayList<>();
+
+            parameters.addAll(values);
+        }
+    }
+
+    /**
+     * Size of a padded IN list for a number of values
+     */
+    static int bucketSize(int size) {
+        for (var bucket : IN_BUCKETS) {
+            if (size <= bucket)
+                return bucket;
+        }
+
+        final int last = IN_BUCKETS[IN_BUCKETS.length - 1];
+        return (size + last - 1) / last * last;
+    }
+
+    /**
+     * Largest size of a padded IN list not greater than a limit, so lists of up
+     * to that many values never exceed it once padded
+     */
+    static int bucketFloor(int limit) {
+        final int last = IN_BUCKETS[IN_BUCKETS.length - 1];
+
+        if (limit >= last)
+            return limit / last * last;
+
+        for (int x = IN_BUCKETS.length - 1; x > 0; x--) {
+            if (IN_BUCKETS[x] <= limit)
+                return IN_BUCKETS[x];
+        }
+
+        return 1;
+    }
+
     /**
      * Create a new filter with parameters
      * 
@@ -62,6 +223,9 @@ public class Filter {
     public static Filter by(String expression) {
         var filter = new Filter();
 
+        if (hasPlaceholder(expression))
+            filter.addPlaceholder();
+
         filter.filter.append(expression);
 
         return filter;
@@ -85,7 +249,10 @@ public class Filter {
      * @return
      */
     protected Filter value(Object value) {
-        if (value instanceof String && !value.equals("?")) {
+        if (parameterized && isBindable(value)) {
+            filter.append(" ?");
+            addParameter(value);
+        } else if (value instanceof String && !value.equals("?")) {
             filter.append(" '%s'".formatted(value));
             // } else if (value instanceof List) {
             // filter.append(" (%s)".formatted(
@@ -93,16 +260,64 @@ public class Filter {
             // .map(v -> (v instanceof String) ? "'%s'".formatted(v) : v.toString())
             // .collect(Collectors.joining(","))));
         } else if (value instanceof Filter) {
+            if (((Filter) value).hasPlaceholders())
+                addPlaceholder();
+
             filter.append(" (%s)".formatted(value));
+            addParameters(((Filter) value).getParameters());
+            addTables(((Filter) value).getTables());
         } else if (value instanceof Select) {
             filter.append(" (%s)".formatted(value));
+
+            var subParameters = ((Select) value).getParameters();
+
+            if (subParameters != null)
+                addParameters(subParameters);
+
+            addTables(((Select) value).getTables());
         } else {
-            filter.append(" %s".formatted(value.toString()));
+            final var text = value.toString();
+
+            if (hasPlaceholder(text))
+                addPlaceholder();
+
+            filter.append(" %s".formatted(text));
         }
         return this;
     }
 
+    /**
+     * IN () isn't valid SQL, so an empty list of values is rejected
+     */
+    private static void checkNotEmpty(List<?> values) {
+        if (values.isEmpty())
+            throw new IllegalArgumentException("A list of values needs at least one value");
+    }
+
+    /**
+     * Indicates if a value can be bound as a parameter (literal values, not
+     * placeholders, subqueries or SQL expressions)
+     */
+    private static boolean isBindable(Object value) {
+        return !"?".equals(value) && !(value instanceof Filter) && !(value instanceof Select)
+                && !(value instanceof Function) && !(value instanceof Command.Operation);
+    }
+
     public <T> Filter value(List<T> values) {
+        checkNotEmpty(values);
+
+        if (parameterized) {
+            final int size = bucketSize(values.size());
+
+            filter.append(" (%s)".formatted(String.join(",", Collections.nCopies(size, "?"))));
+
+            for (int x = 0; x < size; x++) {
+                addParameter(values.get(Math.min(x, values.size() - 1)));
+            }
+
+            return this;
+        }
+
         filter.append(" (%s)".formatted(
                 ((List<T>) values).stream()
                         .map(v -> {
@@ -191,6 +406,7 @@ public class Filter {
      * @return
      */
     public <T> Filter in(List<T> values) {
+        checkNotEmpty(values); // Before anything is written to the filter
         filter.append("IN");
         value(values);
         return this;
@@ -232,8 +448,13 @@ public class Filter {
      * @return
      */
     public Filter and(Filter filter) {
+        if (filter.hasPlaceholders())
+            addPlaceholder();
+
         this.filter.append(" AND ");
         this.filter.append(filter);
+        addParameters(filter.getParameters());
+        addTables(filter.getTables());
         return this;
     }
 
@@ -243,8 +464,13 @@ public class Filter {
      * @return
      */
     public Filter or(Filter filter) {
+        if (filter.hasPlaceholders())
+            addPlaceholder();
+
         this.filter.append(" OR ");
         this.filter.append(filter);
+        addParameters(filter.getParameters());
+        addTables(filter.getTables());
         return this;
     }
 
@@ -1,8 +1,22 @@
 package jstart.db;
 
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.stream.Collectors;
 
 public class Insert extends Command<Insert> {
+    private static final int MAX_VARCHAR = 32765; // Firebird
+
+    private int rows = 1;
+    private final List<Object[]> data = new ArrayList<>();
+    private boolean block;
+    private int maxParameters;
+    private int maxBytes;
 
     protected Insert() {
     }
@@ -21,23 +35,308 @@ public class Insert extends Command<Insert> {
         return this;
     }
 
+    /**
+     * Adds the columns of the rows added with row()
+     * 
+     * @param names column names
+     * @return insert object
+     */
+    public Insert columns(String... names) {
+        for (var name : names) {
+            value(name);
+        }
+
+        return this;
+    }
+
+    /**
+     * Adds a row of values (one for every column, in order) to insert several
+     * records at once. Rows are bound as parameters and rendered as a
+     * multi-row insert; Query.run() splits them in as many statements as the
+     * dialect limits need (see split())
+     * 
+     * @param values values of the row
+     * @return insert object
+     */
+    public Insert row(Object... values) {
+        final var columns = getValues();
+
+        if (columns == null || values.length != columns.size())
+            throw new IllegalArgumentException("A row needs a value for every column (%d)"
+                    .formatted(columns == null ? 0 : columns.size()));
+
+        data.add(values);
+        return this;
+    }
+
+    /**
+     * Adds several rows of values
+     * 
+     * @param rows rows of values (one for every column, in order)
+     * @return insert object
+     */
+    public Insert rows(Iterable<? extends List<?>> rows) {
+        for (var row : rows) {
+            row(row.toArray());
+        }
+
+        return this;
+    }
+
+    /**
+     * @return true if rows were added with row()
+     */
+    public boolean hasRows() {
+        return !data.isEmpty();
+    }
+
+    /**
+     * @return number of rows added with row()
+     */
+    public int getRowCount() {
+        return data.size();
+    }
+
+    /**
+     * Repeats the values of the insert in several rows (INSERT ... VALUES
+     * (?,?),(?,?)...), to insert many records with one statement. The values
+     * should be parameters (?); see Dialect.maxInsertRows()
+     * 
+     * @param rows number of rows
+     * @return insert object
+     */
+    public Insert rows(int rows) {
+        if (rows < 1)
+            throw new IllegalArgumentException("Rows must be greater than 0");
+
+        this.rows = rows;
+        return this;
+    }
+
+    /**
+     * Overrides the maximum number of parameters of a statement given by the
+     * dialect (e.g. 32766 for SQLite 3.32 or newer)
+     * 
+     * @param maxParameters parameters per statement
+     * @return insert object
+     */
+    public Insert maxParameters(int maxParameters) {
+        this.maxParameters = maxParameters;
+        return this;
+    }
+
+    /**
+     * Overrides the maximum size of a statement given by the dialect (e.g. the
+     * max_allowed_packet of the MySQL server)
+     * 
+     * @param maxBytes bytes per statement
+     * @return insert object
+     */
+    public Insert maxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Splits the rows added with row() in inserts that fit the limits of a
+     * dialect: number of parameters, rows of a VALUES list and statement size.
+     * Firebird has no multi-row VALUES, so its rows are inserted with EXECUTE
+     * BLOCK. Dialects without multi-row inserts get one insert per row (to run
+     * as a JDBC batch)
+     * 
+     * @param dialect SQL dialect of the connection
+     * @return list of inserts
+     */
+    public List<Insert> split(Dialect dialect) {
+        return split(dialect, 0, data.size());
+    }
+
+    /**
+     * Splits a range of the rows added with row() (see split(Dialect))
+     * 
+     * @param dialect SQL dialect of the connection
+     * @param from    first row (inclusive)
+     * @param to      last row (exclusive)
+     * @return list of inserts
+     */
+    List<Insert> split(Dialect dialect, int from, int to) {
+        final int columns = getValues().size();
+        final int parameters = maxParameters > 0 ? maxParameters : dialect.maxParameters();
+        final long bytes = maxBytes > 0 ? maxBytes : dialect.maxStatementBytes();
+        final int maxRows = Math.max(1, Math.min(parameters / columns,
+                dialect == Dialect.FIREBIRD ? Integer.MAX_VALUE : dialect.maxInsertRows()));
+        final var chunks = new ArrayList<Insert>();
+        long size = 0;
+
+        for (int x = from; x < to; x++) {
+            final long rowSize = dialect == Dialect.FIREBIRD ? blockSize(data.get(x)) : textSize(data.get(x));
+
+            if (x > from && (x - from == maxRows || size + rowSize > bytes)) {
+                chunks.add(chunk(from, x, dialect));
+                from = x;
+                size = 0;
+            }
+
+            size += rowSize;
+        }
+
+        if (from < to)
+            chunks.add(chunk(from, to, dialect));
+
+        return chunks;
+    }
+
+    private Insert chunk(int from, int to, Dialect dialect) {
+        var insert = Insert.query().table(table());
+
+        insert.setEnclosingChars(getBeginEnclosingChar(), getEndEnclosingChar());
+        getValues().keySet().forEach(insert::value);
+        insert.data.addAll(data.subList(from, to));
+        insert.block = dialect == Dialect.FIREBIRD && to - from > 1;
+
+        return insert;
+    }
+
+    /**
+     * Estimated size of a row rendered as literals (how drivers without server
+     * prepared statements send it)
+     */
+    private static long textSize(Object[] row) {
+        long size = 2;
+
+        for (var value : row) {
+            if (value instanceof String)
+                size += ((String) value).length() * 2L + 3;
+            else if (value instanceof byte[])
+                size += ((byte[]) value).length * 2L + 3;
+            else
+                size += value == null ? 5 : value.toString().length() + 3;
+        }
+
+        return size;
+    }
+
+    /**
+     * Estimated size of a row in an EXECUTE BLOCK: its input message plus its
+     * INSERT statement
+     */
+    private long blockSize(Object[] row) {
+        long size = 40 + table().length();
+
+        for (var value : row) {
+            size += 20; // Parameter declaration, column name and null indicator
+
+            if (value instanceof String)
+                size += varcharLength(((String) value).length()) * 4L + 2;
+            else
+                size += 8;
+        }
+
+        return size;
+    }
+
+    /**
+     * Firebird type of the EXECUTE BLOCK parameter of a value
+     */
+    private static String blockType(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+            return "INTEGER";
+        else if (value instanceof Long)
+            return "BIGINT";
+        else if (value instanceof BigDecimal)
+            return "DECIMAL(18,%d)".formatted(Math.max(0, Math.min(18, ((BigDecimal) value).scale())));
+        else if (value instanceof Double || value instanceof Float)
+            return "DOUBLE PRECISION";
+        else if (value instanceof Boolean)
+            return "BOOLEAN";
+        else if (value instanceof java.sql.Date || value instanceof LocalDate)
+            return "DATE";
+        else if (value instanceof java.sql.Time || value instanceof LocalTime)
+            return "TIME";
+        else if (value instanceof java.util.Date || value instanceof java.time.temporal.Temporal)
+            return "TIMESTAMP";
+        else if (value instanceof byte[])
+            return "BLOB";
+
+        final int length = value == null ? 1 : value.toString().length();
+
+        return length > MAX_VARCHAR ? "BLOB SUB_TYPE TEXT" : "VARCHAR(%d)".formatted(varcharLength(length));
+    }
+
+    /**
+     * Length of a VARCHAR parameter, rounded up to a power of two so blocks of
+     * similar rows have the same text (and prepared statement)
+     */
+    private static int varcharLength(int length) {
+        return length <= 8 ? 8 : Math.min(MAX_VARCHAR, Integer.highestOneBit(length - 1) << 1);
+    }
+
+    @Override
+    protected List<Object> getParameters() {
+        if (data.isEmpty())
+            return super.getParameters();
+
+        var parameters = new ArrayList<Object>(data.size() * data.get(0).length);
+
+        for (var row : data) {
+            parameters.addAll(Arrays.asList(row));
+        }
+
+        return parameters;
+    }
+
     @Override
     public String toString() {
         final var values = getValues();
+        final var columns = values.keySet().stream().map(encloseString("%s")::formatted)
+                .collect(Collectors.joining(","));
 
         clear();
-        append("INSERT INTO %s (%s) VALUES (%s)",
+
+        if (block) {
+            renderBlock(columns);
+            return super.toString();
+        }
+
+        final var row = "(%s)".formatted(values.values().stream().map(v -> {
+            if (v instanceof String && !v.equals("?")) // Si es texto pero no un parámetro
+                return "'%s'".formatted(v);
+            else if (v == null)
+                return "NULL";
+            else
+                return v.toString();
+        }).collect(Collectors.joining(",")));
+        final int count = data.isEmpty() ? rows : data.size();
+
+        append("INSERT INTO %s (%s) VALUES %s",
                 encloseString(table()),
-                values.keySet().stream().map(encloseString("%s")::formatted).collect(Collectors.joining(",")),
-                values.values().stream().map(v -> {
-                    if (v instanceof String && !v.equals("?")) // Si es texto pero no un parámetro
-                        return "'%s'".formatted(v);
-                    else if (v == null)
-                        return "NULL";
-                    else
-                        return v.toString();
-                }).collect(Collectors.joining(",")));
+                columns,
+                count == 1 ? row : String.join(",", Collections.nCopies(count, row)));
 
         return super.toString();
     }
+
+    /**
+     * EXECUTE BLOCK (P0 INTEGER = ?, ...) AS BEGIN INSERT ... VALUES (:P0, ...);
+     * ... END
+     */
+    private void renderBlock(String columns) {
+        var declarations = new ArrayList<String>();
+        var inserts = new StringBuilder();
+        int index = 0;
+
+        for (var row : data) {
+            var names = new ArrayList<String>(row.length);
+
+            for (var value : row) {
+                declarations.add("P%d %s = ?".formatted(index, blockType(value)));
+                names.add(":P%d".formatted(index++));
+            }
+
+            inserts.append("INSERT INTO %s (%s) VALUES (%s);\n"
+                    .formatted(encloseString(table()), columns, String.join(",", names)));
+        }
+
+        append("EXECUTE BLOCK (%s) AS BEGIN\n%sEND", String.join(", ", declarations), inserts);
+    }
 }
@@ -0,0 +1,43 @@
+package jstart.db;
+
+/**
+ * Base model for entities with @Column annotated fields: readFrom() and
+ * writeTo() are done by the compiled mapper of the class (see EntityMapper),
+ * which also reads result sets and binds statements straight from the fields.
+ * An entity may still override readFrom()/writeTo(), and then the overridden
+ * methods are used everywhere instead of the mapper
+ *
+ * <pre>
+ * &#64;RecordTable(table = "users")
+ * &#64;PrimaryKey(fields = "id")
+ * public class User extends MappedEntity&lt;User&gt; {
+ *     &#64;Column
+ *     public int id;
+ *     &#64;Column
+ *     public String name;
+ * }
+ * </pre>
+ */
+public abstract class MappedEntity<T> extends Entity<T> {
+    private static final long serialVersionUID = 1L;
+
+    protected MappedEntity() {
+        if (!mapper().hasColumns())
+            throw new IllegalStateException("%s has no @Column annotated fields".formatted(getClass().getName()));
+    }
+
+    @Override
+    public void readFrom(MapValues data) {
+        mapper().readFrom(data, this);
+    }
+
+    @Override
+    public void writeTo(MapValues data) {
+        mapper().writeTo(this, data);
+    }
+
+    @SuppressWarnings("unchecked")
+    private EntityMapper<MappedEntity<T>> mapper() {
+        return EntityMapper.of((Class<MappedEntity<T>>) getClass());
+    }
+}
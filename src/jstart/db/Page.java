@@ -0,0 +1,95 @@
+package jstart.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Page of records read with keyset (seek) pagination. The cursor token holds
+ * the order field values of the last record, and is given back to read the
+ * next page
+ *
+ * @param <T> record class
+ */
+public class Page<T> {
+    // Tokens come from clients, so only small graphs of plain value classes are
+    // deserialized (the limits bound the memory a crafted token can allocate)
+    private static final int MAX_TOKEN_BYTES = 8192;
+    private static final ObjectInputFilter TOKEN_FILTER = ObjectInputFilter.Config
+            .createFilter("maxdepth=4;maxarray=256;maxrefs=256;maxbytes=" + MAX_TOKEN_BYTES
+                    + ";java.lang.*;java.math.*;java.sql.*;java.time.*;java.util.Date;!*");
+
+    private final List<T> records;
+    private final String nextToken;
+
+    Page(List<T> records, String nextToken) {
+        this.records = Collections.unmodifiableList(records);
+        this.nextToken = nextToken;
+    }
+
+    /**
+     * @return records of the page
+     */
+    public List<T> getRecords() {
+        return records;
+    }
+
+    /**
+     * @return cursor token of the next page (null if this is the last page)
+     */
+    public String getNextToken() {
+        return nextToken;
+    }
+
+    /**
+     * @return true if there are more pages
+     */
+    public boolean hasNext() {
+        return nextToken != null;
+    }
+
+    /**
+     * Encodes the order field values of a row as a cursor token
+     *
+     * @param values order field values (serializable objects)
+     * @return URL-safe token
+     */
+    public static String encode(Object[] values) {
+        var bytes = new ByteArrayOutputStream();
+
+        try (var out = new ObjectOutputStream(bytes)) {
+            out.writeObject(values);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Decodes a cursor token
+     *
+     * @param token token created by encode() (null for the first page)
+     * @return order field values (null if there is no token)
+     */
+    public static Object[] decode(String token) {
+        if (token == null || token.isEmpty())
+            return null;
+
+        if (token.length() > MAX_TOKEN_BYTES * 4 / 3 + 4)
+            throw new IllegalArgumentException("Invalid page token");
+
+        try (var in = new ObjectInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)))) {
+            in.setObjectInputFilter(TOKEN_FILTER);
+            return (Object[]) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid page token", e);
+        }
+    }
+}
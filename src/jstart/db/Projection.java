@@ -0,0 +1,264 @@
+package jstart.db;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jstart.Convert;
+import jstart.annotations.Column;
+
+/**
+ * Projection of the rows of a select into a record or an interface, with only
+ * the columns it declares (see Repository.selectByFilter(Class, ...)). Record
+ * components are columns by name (or by @Column name) and interface getters
+ * are columns by property name (getName() and name() are both "name"); the
+ * interface objects are proxies over the values of their row
+ *
+ * @param <P> projection type
+ */
+final class Projection<P> {
+    private static final Map<Class<?>, Projection<?>> projections = new ConcurrentHashMap<>();
+
+    private final Class<P> type;
+    private final List<String> columns;
+    private final Class<?>[] types;
+    private final Constructor<P> constructor;
+    private final Map<Method, Integer> getters;
+
+    private Projection(Class<P> type) {
+        this.type = type;
+
+        var names = new ArrayList<String>();
+        var classes = new ArrayList<Class<?>>();
+
+        if (type.isRecord()) {
+            final var components = type.getRecordComponents();
+
+            for (var component : components) {
+                names.add(recordColumn(type, component.getName()));
+                classes.add(component.getType());
+            }
+
+            try {
+                this.constructor = type.getDeclaredConstructor(classes.toArray(new Class<?>[0]));
+                this.constructor.setAccessible(true);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                throw new IllegalArgumentException("Projection record %s isn't accessible".formatted(type.getName()),
+                        e);
+            }
+
+            this.getters = null;
+        } else if (type.isInterface()) {
+            this.getters = new HashMap<>();
+
+            for (var method : type.getMethods()) {
+                if (method.isDefault() || Modifier.isStatic(method.getModifiers()))
+                    continue;
+
+                if (method.getParameterCount() > 0 || method.getReturnType() == void.class)
+                    throw new IllegalArgumentException("Projection method %s.%s isn't a getter"
+                            .formatted(type.getName(), method.getName()));
+
+                final var column = property(method);
+                int index = names.indexOf(column);
+
+                if (index < 0) {
+                    index = names.size();
+                    names.add(column);
+                    classes.add(method.getReturnType());
+                }
+
+                getters.put(method, index);
+            }
+
+            this.constructor = null;
+        } else {
+            throw new IllegalArgumentException("A projection must be a record or an interface: " + type.getName());
+        }
+
+        if (names.isEmpty())
+            throw new IllegalArgumentException("Projection %s has no columns".formatted(type.getName()));
+
+        this.columns = Collections.unmodifiableList(names);
+        this.types = classes.toArray(new Class<?>[0]);
+    }
+
+    /**
+     * Returns the (cached) projection of a record or interface
+     *
+     * @param type projection type
+     * @return projection object
+     */
+    @SuppressWarnings("unchecked")
+    static <P> Projection<P> of(Class<P> type) {
+        return (Projection<P>) projections.computeIfAbsent(type, Projection::new);
+    }
+
+    /**
+     * @return columns to select, in declaration order
+     */
+    List<String> getColumns() {
+        return columns;
+    }
+
+    /**
+     * Creates a projection object from a row
+     *
+     * @param row row view (reused between rows, so its values are copied)
+     * @return projection object
+     */
+    P read(RowValues row) {
+        final var values = new Object[columns.size()];
+
+        for (int x = 0; x < values.length; x++) {
+            values[x] = convert(row.get(columns.get(x)), types[x]);
+        }
+
+        if (constructor != null) {
+            try {
+                return constructor.newInstance(values);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler(values)));
+    }
+
+    private InvocationHandler handler(Object[] values) {
+        return (proxy, method, args) -> {
+            final var index = getters.get(method);
+
+            if (index != null)
+                return values[index];
+
+            if (method.isDefault())
+                return InvocationHandler.invokeDefault(proxy, method, args);
+
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    var text = new StringBuilder(type.getSimpleName()).append('[');
+
+                    for (int x = 0; x < values.length; x++) {
+                        text.append(x > 0 ? ", " : "").append(columns.get(x)).append('=').append(values[x]);
+                    }
+
+                    return text.append(']').toString();
+                default:
+                    throw new UnsupportedOperationException(method.toString());
+            }
+        };
+    }
+
+    private static String recordColumn(Class<?> type, String component) {
+        try {
+            var column = type.getDeclaredField(component).getAnnotation(Column.class);
+            return column != null && !column.name().isEmpty() ? column.name() : component;
+        } catch (NoSuchFieldException e) {
+            return component;
+        }
+    }
+
+    /**
+     * Column of an interface getter: getName() and name() are "name", isActive()
+     * is "active"
+     */
+    private static String property(Method method) {
+        final var name = method.getName();
+        int prefix = 0;
+
+        if (name.startsWith("get") && name.length() > 3)
+            prefix = 3;
+        else if (name.startsWith("is") && name.length() > 2
+                && (method.getReturnType() == boolean.class || method.getReturnType() == Boolean.class))
+            prefix = 2;
+
+        if (prefix == 0 || !Character.isUpperCase(name.charAt(prefix)))
+            return name;
+
+        return Character.toLowerCase(name.charAt(prefix)) + name.substring(prefix + 1);
+    }
+
+    /**
+     * Converts a column value to a Java type (primitive types get 0 or false for
+     * nulls)
+     *
+     * @param value column value
+     * @param type  Java type
+     * @return converted value
+     */
+    static Object convert(Object value, Class<?> type) {
+        if (type.isPrimitive()) {
+            if (value == null)
+                return Array.get(Array.newInstance(type, 1), 0);
+
+            type = wrapper(type);
+        }
+
+        if (value == null || type.isInstance(value))
+            return value;
+        if (type == Integer.class)
+            return Convert.from(value).toInteger();
+        if (type == Long.class)
+            return Convert.from(value).toLong();
+        if (type == Double.class)
+            return Convert.from(value).toDouble();
+        if (type == Float.class)
+            return Convert.from(value).toFloat();
+        if (type == Short.class)
+            return Convert.from(value).toShort();
+        if (type == Byte.class)
+            return Convert.from(value).toByte();
+        if (type == Boolean.class)
+            return Convert.from(value).toBoolean();
+        if (type == String.class)
+            return value.toString();
+        if (type == BigDecimal.class)
+            return new BigDecimal(value.toString());
+        if (type == LocalDateTime.class && value instanceof Timestamp)
+            return ((Timestamp) value).toLocalDateTime();
+        if (type == LocalDate.class && value instanceof Date)
+            return ((Date) value).toLocalDate();
+
+        return type.cast(value);
+    }
+
+    private static Class<?> wrapper(Class<?> type) {
+        if (type == int.class)
+            return Integer.class;
+        if (type == long.class)
+            return Long.class;
+        if (type == double.class)
+            return Double.class;
+        if (type == float.class)
+            return Float.class;
+        if (type == short.class)
+            return Short.class;
+        if (type == byte.class)
+            return Byte.class;
+        if (type == boolean.class)
+            return Boolean.class;
+        if (type == char.class)
+            return Character.class;
+
+        return Void.class;
+    }
+}
@@ -1,10 +1,24 @@
 package jstart.db;
 
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Query {
     public static class DBNull {
@@ -27,8 +41,157 @@ public class Query {
         }
     }
 
+    /**
+     * Creates objects from the rows of a result set or from cached rows
+     */
+    private interface RowReader<T> {
+        T read(ResultSet rs) throws SQLException;
+
+        T read(RowValues values);
+    }
+
+    /**
+     * Creates records from the rows of a result set. The column layout is read
+     * once (with the first row) and every row is read into the same reusable
+     * row view
+     */
+    private static class Hydrator<T> implements RowReader<T> {
+        private final Supplier<T> supplier;
+        private RowValues row;
+        private EntityMapper<T>.Reader reader;
+
+        Hydrator(Supplier<T> supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T read(ResultSet rs) throws SQLException {
+            var record = supplier.get();
+
+            if (row == null) {
+                row = new RowValues(rs);
+
+                var mapper = EntityMapper.of((Class<T>) record.getClass());
+
+                if (mapper.isMapped())
+                    reader = mapper.reader(row.getLayout());
+            }
+
+            if (reader != null)
+                return reader.read(rs, record);
+
+            ((Entity) record).readFrom(row.read(rs));
+
+            return record;
+        }
+
+        /**
+         * Creates a record from a row view (cached rows)
+         */
+        @Override
+        @SuppressWarnings("unchecked")
+        public T read(RowValues values) {
+            var record = supplier.get();
+            var mapper = EntityMapper.of((Class<T>) record.getClass());
+
+            if (mapper.isMapped())
+                mapper.readFrom(values, record);
+            else
+                ((Entity) record).readFrom(values);
+
+            return record;
+        }
+    }
+
+    /**
+     * Maps the rows of a result set, read into a reusable row view
+     */
+    private static class RowMapper<T> implements RowReader<T> {
+        private final Function<RowValues, T> mapper;
+        private RowValues row;
+
+        RowMapper(Function<RowValues, T> mapper) {
+            this.mapper = mapper;
+        }
+
+        @Override
+        public T read(ResultSet rs) throws SQLException {
+            if (row == null)
+                row = new RowValues(rs);
+
+            return mapper.apply(row.read(rs));
+        }
+
+        @Override
+        public T read(RowValues values) {
+            return mapper.apply(values);
+        }
+    }
+
+    /**
+     * Reads the first column of the rows, with no row view
+     */
+    private static class ColumnReader<T> implements RowReader<T> {
+        private final Class<T> type;
+
+        ColumnReader(Class<T> type) {
+            this.type = type;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T read(ResultSet rs) throws SQLException {
+            return (T) Projection.convert(rs.getObject(1), type);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T read(RowValues values) {
+            return (T) Projection.convert(values.getValue(0), type);
+        }
+    }
+
+    /**
+     * Source of a connection leased by the query and its number of leases (a
+     * shared connection may be leased by several runs at the same time)
+     */
+    private static class Lease {
+        final ConnectionSource source;
+        int count;
+
+        Lease(ConnectionSource source) {
+            this.source = source;
+        }
+    }
+
+    /**
+     * Binds the parameters of a prepared statement
+     */
+    @FunctionalInterface
+    public interface Binder {
+        void bind(PreparedStatement ps) throws SQLException;
+    }
+
+    /**
+     * Binds a row (entity, array of values...) into the parameters of a prepared
+     * statement
+     */
+    @FunctionalInterface
+    public interface RowBinder<R> {
+        void bind(PreparedStatement ps, R row) throws SQLException;
+    }
+
     private final DBConnection connection;
     private final Command command;
+    private int fetchSize;
+    private int maxRows;
+    private Binder binder;
+    private boolean cached;
+    private long cacheTtl = -1;
+    private ConnectionSource source;
+    private ConnectionSource routed;
+    private final Map<Connection, Lease> leases = new IdentityHashMap<>();
 
     private Query(DBConnection connection, Command command) {
         this.connection = connection;
@@ -39,6 +202,239 @@ public class Query {
         return new Query(connection, command);
     }
 
+    /**
+     * Runs the query on connections of another source instead of the ones of
+     * the DBConnection (e.g. dedicated connections of a parallel scan)
+     * 
+     * @param source connection source
+     * @return query object
+     */
+    Query on(ConnectionSource source) {
+        this.source = source;
+        return this;
+    }
+
+    private ConnectionSource source() {
+        if (source != null)
+            return source;
+
+        final var transaction = connection.getTransaction();
+
+        if (transaction != null)
+            return transaction.source();
+
+        if (routed == null) // Selects go to a read replica, if any
+            routed = command instanceof Select ? connection.getReadSource() : connection.getSource();
+
+        return routed;
+    }
+
+    private Connection acquire() throws SQLException {
+        return acquire(false);
+    }
+
+    /**
+     * Leases the connection of the query
+     * 
+     * @param exclusive true if the state of the connection is changed (autocommit
+     *                  off), so the shared connection of a non-pooled
+     *                  DBConnection isn't used
+     */
+    private Connection acquire(boolean exclusive) throws SQLException {
+        final var transaction = source == null ? connection.getTransaction() : null;
+
+        if (transaction != null) // Pending writes run before the query
+            transaction.flush();
+
+        var source = source();
+
+        if (exclusive && source == connection.getSource() && !source.isPooled())
+            source = connection.getExclusiveSource();
+        final var event = new DBEvents.Acquire();
+
+        event.begin();
+
+        Connection conn;
+
+        try {
+            conn = source.acquire();
+        } catch (SQLException e) {
+            if (source != routed || source == connection.getSource())
+                throw e;
+
+            routed = source = connection.getSource(); // Replica down: read from the primary
+            conn = source.acquire();
+        }
+
+        event.end();
+
+        synchronized (leases) { // Given back to the same source even if the transaction changes
+            var lease = leases.get(conn);
+
+            if (lease == null)
+                leases.put(conn, lease = new Lease(source));
+
+            lease.count++;
+        }
+
+        if (event.shouldCommit()) {
+            event.pooled = source.isPooled();
+            event.commit();
+        }
+
+        return conn;
+    }
+
+    private void release(Connection conn) {
+        final ConnectionSource source;
+
+        synchronized (leases) {
+            final var lease = leases.get(conn);
+
+            if (lease == null)
+                throw new IllegalStateException("The connection isn't leased by this query");
+
+            if (--lease.count == 0)
+                leases.remove(conn);
+
+            source = lease.source;
+        }
+
+        source.release(conn);
+    }
+
+    private StatementCache statements(Connection conn) {
+        synchronized (leases) {
+            final var lease = leases.get(conn);
+
+            if (lease == null)
+                throw new IllegalStateException("The connection isn't leased by this query");
+
+            return lease.source.statements(conn);
+        }
+    }
+
+    /**
+     * Sets the number of rows fetched from the database in every round trip
+     * (Statement.setFetchSize()) for select queries
+     * 
+     * @param fetchSize rows per round trip (0 for the driver default)
+     * @return query object
+     */
+    public Query fetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /**
+     * Limits the number of rows read by select queries
+     * (Statement.setMaxRows()), for dialects whose select doesn't render a row
+     * limit
+     * 
+     * @param maxRows maximum number of rows (0 for no limit)
+     * @return query object
+     */
+    public Query maxRows(int maxRows) {
+        this.maxRows = maxRows;
+        return this;
+    }
+
+    /**
+     * Sets a binder for the parameters of the query, used instead of the command
+     * parameters (for example, to bind entity fields straight into the statement)
+     * 
+     * @param binder parameters binder
+     * @return query object
+     */
+    public Query bind(Binder binder) {
+        this.binder = binder;
+        return this;
+    }
+
+    /**
+     * Marks the query to be served from the query cache of the connection (if
+     * enabled) by runToRecords() and runValue()
+     * 
+     * @return query object
+     */
+    public Query cached() {
+        this.cached = true;
+        return this;
+    }
+
+    /**
+     * Marks the query to be served from the query cache of the connection (if
+     * enabled) with its own time to live
+     * 
+     * @param ttl milliseconds the result stays in the cache
+     * @return query object
+     */
+    public Query cached(long ttl) {
+        this.cached = true;
+        this.cacheTtl = ttl;
+        return this;
+    }
+
+    /**
+     * Query cache to use for this query, or null if it isn't cached (results
+     * limited by maxRows() aren't, as the limit isn't part of the SQL text)
+     */
+    private QueryCache activeCache() {
+        return cached && binder == null && maxRows == 0 && command instanceof Select
+                && connection.getTransaction() == null
+                ? connection.getQueryCache()
+                : null;
+    }
+
+    /**
+     * Invalidates the cached results of the command table after a write (and
+     * again at commit if it runs in a transaction)
+     */
+    private void invalidateCache() {
+        if (command instanceof Select)
+            return;
+
+        final var cache = connection.getQueryCache();
+        final var transaction = connection.getTransaction();
+
+        if (cache != null)
+            cache.invalidate(command.table());
+
+        if (transaction != null)
+            transaction.written(command.table());
+
+        connection.written();
+    }
+
+    private boolean hasParameters() {
+        return binder != null || command.hasParameters();
+    }
+
+    /**
+     * Start time of an execution for the query stats (0 if they are disabled)
+     */
+    private long started() {
+        return connection.getStats() != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Starts a JFR event of the query (see DBEvents)
+     */
+    private static <E extends DBEvents.QueryEvent> E begin(E event) {
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Records an execution in the query stats of the connection
+     */
+    private void record(String sql, long started, long rows) {
+        final var stats = connection.getStats();
+
+        if (stats != null && started != 0)
+            stats.record(sql, binder == null ? command : null, System.nanoTime() - started, rows);
+    }
+
     /**
      * Runs an insert/update/delete query
      * 
@@ -47,66 +443,367 @@ public class Query {
      * @throws SQLException
      */
     public long run(boolean generateKeys) throws SQLException {
+        if (command instanceof Insert && ((Insert) command).hasRows()) {
+            if (generateKeys)
+                throw new IllegalStateException("Generated keys aren't returned by inserts of several rows");
+
+            runRows();
+            return 0;
+        }
+
+        return execute(generateKeys);
+    }
+
+    /**
+     * Runs the command as a single statement (inserts of several rows are
+     * already split)
+     */
+    private long execute(boolean generateKeys) throws SQLException {
         String sql = command.toString();
+        final var conn = acquire();
+        final long started = started();
+
+        try {
+            if (!hasParameters()) {
+                try (var stm = conn.createStatement()) {
+                    if (generateKeys) {
+                        final var execute = begin(new DBEvents.Execute());
+                        final int count = stm.executeUpdate(sql, java.sql.Statement.RETURN_GENERATED_KEYS);
+
+                        execute.commit(sql, command.table(), count);
+
+                        try (var result = stm.getGeneratedKeys()) {
+                            result.next();
+                            record(sql, started, count);
+                            return result.getLong(1);
+                        }
+                    } else {
+                        final var execute = begin(new DBEvents.Execute());
 
-        if (!command.hasParameters()) {
-            try (var stm = connection.getConnection().createStatement()) {
-                if (generateKeys) {
-                    stm.executeUpdate(sql, java.sql.Statement.RETURN_GENERATED_KEYS);
+                        stm.execute(sql);
 
-                    try (var result = stm.getGeneratedKeys()) {
-                        result.next();
-                        return result.getLong(1);
+                        final int count = Math.max(0, stm.getUpdateCount());
+
+                        execute.commit(sql, command.table(), count);
+                        record(sql, started, count);
                     }
-                } else {
-                    stm.execute(sql);
+                }
+            } else {
+                final var ps = getPreparedStatement(conn, sql, generateKeys);
+
+                try {
+                    if (generateKeys) {
+                        final var execute = begin(new DBEvents.Execute());
+                        final int count = ps.executeUpdate();
+
+                        execute.commit(sql, command.table(), count);
+
+                        try (var result = ps.getGeneratedKeys()) {
+                            result.next();
+                            record(sql, started, count);
+                            return result.getLong(1);
+                        }
+                    } else {
+                        final var execute = begin(new DBEvents.Execute());
+
+                        ps.execute();
+
+                        final int count = Math.max(0, ps.getUpdateCount());
+
+                        execute.commit(sql, command.table(), count);
+                        record(sql, started, count);
+                    }
+                } finally {
+                    releasePreparedStatement(conn, ps);
                 }
             }
-        } else {
-            try (var ps = getPreparedStatement(sql, generateKeys)) {
-                final var params = command.getParameters();
+        } finally {
+            release(conn);
+            invalidateCache();
+        }
+
+        return 0;
+    }
 
-                for (int x = 0; x < params.size(); x++) {
-                    ps.setObject(x + 1, params.get(x));
+    /**
+     * Runs an insert with the rows added with Insert.row(), split in as many
+     * statements as the dialect limits need (see Insert.split()). Dialects
+     * without multi-row inserts run the rows as a JDBC batch. All the rows are
+     * committed together
+     * 
+     * @return number of inserted rows
+     * @throws SQLException
+     */
+    public long runRows() throws SQLException {
+        if (!(command instanceof Insert))
+            throw new IllegalStateException("Only inserts have rows");
+
+        return runRows(Math.max(1, ((Insert) command).getRowCount()));
+    }
+
+    /**
+     * Runs an insert with the rows added with Insert.row() (see runRows()),
+     * committing every chunk of batchSize rows on its own (unless it runs in a
+     * transaction)
+     * 
+     * @param batchSize rows sent (and committed) together
+     * @return number of inserted rows
+     * @throws SQLException
+     */
+    public long runRows(int batchSize) throws SQLException {
+        if (!(command instanceof Insert))
+            throw new IllegalStateException("Only inserts have rows");
+
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be greater than 0");
+
+        final var insert = (Insert) command;
+        final var dialect = connection.getDialect();
+        final int total = insert.getRowCount();
+
+        if (total == 0)
+            return 0;
+
+        if (dialect.maxInsertRows() == 1 && dialect != Dialect.FIREBIRD) {
+            final var chunks = insert.split(dialect);
+            var rows = new ArrayList<List<Object>>(chunks.size());
+
+            for (var chunk : chunks) {
+                rows.add(chunk.getParameters());
+            }
+
+            Query.with(connection, chunks.get(0)).on(source).runBatch(rows, batchSize, false);
+            return rows.size();
+        }
+
+        if (total <= batchSize) {
+            final var chunks = insert.split(dialect);
+
+            if (chunks.size() == 1) { // A single statement commits by itself
+                Query.with(connection, chunks.get(0)).on(source).execute(false);
+                return total;
+            }
+        }
+
+        final var conn = acquire(true);
+        final ConnectionSource.Pinned pinned;
+        final boolean autoCommit;
+
+        try {
+            pinned = new ConnectionSource.Pinned(conn, statements(conn));
+            autoCommit = conn.getAutoCommit();
+        } catch (SQLException | RuntimeException e) {
+            release(conn);
+            throw e;
+        }
+
+        try {
+            if (autoCommit)
+                conn.setAutoCommit(false);
+
+            for (int from = 0; from < total; from += batchSize) {
+                for (var chunk : insert.split(dialect, from, Math.min(total, from + batchSize))) {
+                    Query.with(connection, chunk).on(pinned).execute(false);
                 }
 
-                if (generateKeys) {
-                    ps.executeUpdate();
+                if (autoCommit)
+                    conn.commit();
+            }
+        } catch (SQLException | RuntimeException e) {
+            if (autoCommit)
+                conn.rollback();
 
-                    try (var result = ps.getGeneratedKeys()) {
-                        result.next();
-                        return result.getLong(1);
-                    }
-                } else {
-                    ps.execute();
+            throw e;
+        } finally {
+            try {
+                if (autoCommit)
+                    conn.setAutoCommit(true);
+            } finally {
+                release(conn);
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Runs an insert/update/delete query once for every row of parameters using
+     * JDBC batches. Every chunk of batchSize rows is sent with executeBatch() and
+     * committed on its own
+     * 
+     * @param rows         parameter values of every execution
+     * @param batchSize    rows sent (and committed) together
+     * @param generateKeys true if returns the generated keys (insert queries)
+     * @return generated keys if requested (where the driver supports it),
+     *         otherwise the update counts of every row
+     * @throws SQLException
+     */
+    public long[] runBatch(Collection<? extends List<?>> rows, int batchSize, boolean generateKeys)
+            throws SQLException {
+        return runBatch(rows, this::setParameters, batchSize, generateKeys);
+    }
+
+    /**
+     * Runs an insert/update/delete query once for every row using JDBC batches,
+     * binding each row with a binder. Every chunk of batchSize rows is sent with
+     * executeBatch() and committed on its own
+     * 
+     * @param rows         rows to bind (entities, arrays of values...)
+     * @param binder       binds a row into the parameters of the statement
+     * @param batchSize    rows sent (and committed) together
+     * @param generateKeys true if returns the generated keys (insert queries)
+     * @return generated keys if requested (where the driver supports it),
+     *         otherwise the update counts of every row
+     * @throws SQLException
+     */
+    public <R> long[] runBatch(Collection<? extends R> rows, RowBinder<? super R> binder, int batchSize,
+            boolean generateKeys) throws SQLException {
+        final var result = new long[rows.size()];
+
+        if (rows.isEmpty())
+            return result;
+
+        final var conn = acquire(true);
+        final long started = started();
+        final String sql = command.toString();
+        final boolean autoCommit;
+        final PreparedStatement ps;
+
+        try {
+            autoCommit = conn.getAutoCommit();
+            ps = statements(conn).prepare(sql, generateKeys);
+        } catch (SQLException | RuntimeException e) {
+            release(conn);
+            throw e;
+        }
+
+        try {
+            if (autoCommit)
+                conn.setAutoCommit(false);
+
+            int index = 0;
+            int pending = 0;
+
+            for (var row : rows) {
+                binder.bind(ps, row);
+                ps.addBatch();
+
+                if (++pending == batchSize || index + pending == result.length) {
+                    index = executeBatch(sql, ps, generateKeys, result, index);
+                    pending = 0;
+
+                    if (autoCommit)
+                        conn.commit();
                 }
             }
 
+            record(sql, started, result.length);
+        } catch (SQLException | RuntimeException e) {
+            if (autoCommit)
+                conn.rollback();
+
+            throw e;
+        } finally {
+            try {
+                if (autoCommit)
+                    conn.setAutoCommit(true);
+            } finally {
+                releasePreparedStatement(conn, ps);
+                release(conn);
+                invalidateCache();
+            }
+        }
+
+        return result;
+    }
+
+    private int executeBatch(String sql, PreparedStatement ps, boolean generateKeys, long[] result, int index)
+            throws SQLException {
+        final var event = begin(new DBEvents.Batch());
+        final var counts = ps.executeBatch();
+
+        event.operation = "executeBatch";
+        event.commit(sql, command.table(), counts.length);
+
+        if (generateKeys) {
+            try (var keys = ps.getGeneratedKeys()) {
+                int x = index;
+
+                while (x < result.length && keys.next()) {
+                    result[x++] = keys.getLong(1);
+                }
+            }
+        } else {
+            for (int x = 0; x < counts.length && index + x < result.length; x++) {
+                result[index + x] = counts[x];
+            }
         }
 
-        return 0;
+        return index + counts.length;
     }
 
-    protected Statement getStatement() throws SQLException {
-        return connection.getConnection().createStatement();
+    protected Statement getStatement(Connection conn) throws SQLException {
+        final var stm = conn.createStatement();
+
+        if (fetchSize != 0)
+            stm.setFetchSize(fetchSize);
+
+        if (maxRows != 0)
+            stm.setMaxRows(maxRows);
+
+        return stm;
     }
 
+    /**
+     * Runs a select query and returns the open result set. The caller must close
+     * it: closing the result set also closes its statement and gives the leased
+     * connection back to its source (the pool or the replica)
+     * 
+     * @return result set
+     * @throws SQLException
+     */
     public ResultSet run() throws SQLException {
         final String sql = command.toString();
+        final var conn = acquire();
+
+        try {
+            final long started = started();
+            final var stm = getStatement(conn);
+            final var result = executeQuery(stm, sql);
 
-        // if (!command.hasParameters()) {
-        return getStatement().executeQuery(sql);
-        // } else {
-        // try (var ps = getPreparedStatement(sql, null)) {
-        // final var params = command.getParameters();
+            record(sql, started, 0); // Rows are read by the caller
 
-        // for (int x = 0; x < params.size(); x++) {
-        // ps.setObject(x + 1, params.get(x));
-        // }
+            return releasingResultSet(result, stm, conn);
+        } catch (SQLException | RuntimeException e) {
+            release(conn);
+            throw e;
+        }
+    }
+
+    /**
+     * Wraps a result set so closing it also closes its statement and gives the
+     * connection back to the DBConnection
+     */
+    private ResultSet releasingResultSet(ResultSet result, Statement stm, Connection conn) {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("close") && method.getParameterCount() == 0) {
+                        try {
+                            result.close();
+                            stm.close();
+                        } finally {
+                            release(conn);
+                        }
+
+                        return null;
+                    }
 
-        // return ps.executeQuery();
-        // }
-        // }
+                    try {
+                        return method.invoke(result, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
     }
 
     // public void run(Consumer<ResultSet> fun) throws SQLException {
@@ -120,99 +817,408 @@ public class Query {
     // }
 
     public void run(Consumer<ResultSet> fun) throws SQLException {
-        if (!command.hasParameters()) {
-            final var result = run();
-            while (result.next()) {
-                fun.accept(result);
-            }
-            result.close();
-        } else {
-            try (var ps = getPreparedStatement(command.toString(), null)) {
-                // final var params = command.getParameters();
-
-                // for (int x = 0; x < params.size(); x++) {
-                //     ps.setObject(x + 1, params.get(x));
-                // }
+        final String sql = command.toString();
+        final var conn = acquire();
+        final long started = started();
+        final long rows;
 
-                final var result = ps.executeQuery();
+        try {
+            if (!hasParameters()) {
+                try (var stm = getStatement(conn);
+                        var result = executeQuery(stm, sql)) {
+                    rows = fetch(sql, result, fun);
+                }
+            } else {
+                final var ps = getPreparedStatement(conn, sql, null);
 
-                while (result.next()) {
-                    fun.accept(result);
+                try (var result = executeQuery(ps, sql)) {
+                    rows = fetch(sql, result, fun);
+                } finally {
+                    releasePreparedStatement(conn, ps);
                 }
             }
+
+            record(sql, started, rows);
+        } finally {
+            release(conn);
         }
     }
 
+    /**
+     * Runs a select statement
+     */
+    private ResultSet executeQuery(Statement stm, String sql) throws SQLException {
+        final var event = begin(new DBEvents.Execute());
+        final var result = stm.executeQuery(sql);
+
+        event.commit(sql, command.table(), 0);
+
+        return result;
+    }
+
+    /**
+     * Runs a select prepared statement
+     */
+    private ResultSet executeQuery(PreparedStatement ps, String sql) throws SQLException {
+        final var event = begin(new DBEvents.Execute());
+        final var result = ps.executeQuery();
+
+        event.commit(sql, command.table(), 0);
+
+        return result;
+    }
+
+    /**
+     * Reads all the rows of a result set
+     * 
+     * @return number of rows
+     */
+    private long fetch(String sql, ResultSet result, Consumer<ResultSet> fun) throws SQLException {
+        final var event = begin(new DBEvents.Fetch());
+        long rows = 0;
+
+        while (result.next()) {
+            fun.accept(result);
+            rows++;
+        }
+
+        event.commit(sql, command.table(), rows);
+
+        return rows;
+    }
+
     public <T> List<T> runToRecords(Supplier<T> supplier) throws SQLException {
+        return runToList(new Hydrator<>(supplier));
+    }
+
+    /**
+     * Runs a select query and maps every row (a row view reused between rows,
+     * so copy what you keep from it)
+     * 
+     * @param mapper creates an object from a row
+     * @return mapped objects
+     * @throws SQLException
+     */
+    public <T> List<T> runToRows(Function<RowValues, T> mapper) throws SQLException {
+        return runToList(new RowMapper<>(mapper));
+    }
+
+    /**
+     * Runs a select query of a single column and returns its values converted to
+     * a type, read straight from the result set (primitive types give their
+     * wrapper values, with 0 or false for nulls)
+     * 
+     * @param type type of the values
+     * @return values of the first column
+     * @throws SQLException
+     */
+    public <T> List<T> runToColumn(Class<T> type) throws SQLException {
+        return runToList(new ColumnReader<>(type));
+    }
+
+    private <T> List<T> runToList(RowReader<T> reader) throws SQLException {
         List<T> records = new ArrayList<>();
 
-        run(rs -> {
-            var record = (Entity) supplier.get();
-            var map = new MapValues();
+        final var cache = activeCache();
 
+        if (cache != null)
+            return runToCachedRecords(cache, reader);
+
+        run(rs -> {
             try {
-                var metadata = rs.getMetaData();
-                var count = metadata.getColumnCount();
+                records.add(reader.read(rs));
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        return records;
+    }
+
+    private <T> List<T> runToCachedRecords(QueryCache cache, RowReader<T> hydrator) throws SQLException {
+        final String sql = command.toString();
+        final var key = new QueryCache.Key(sql, command.getParameters());
+        final var cachedResult = lookup(cache, key, sql);
+        final List<T> records = new ArrayList<>();
 
-                for (int x = 1; x <= count; x++) {
-                    var name = metadata.getColumnName(x);
-                    map.put(name, rs.getObject(x));
+        if (cachedResult != null) {
+            if (!cachedResult.rows.isEmpty()) {
+                var row = new RowValues(cachedResult.layout);
+
+                for (var values : cachedResult.rows) {
+                    records.add(hydrator.read(row.set(values)));
                 }
+            }
+
+            return records;
+        }
+
+        final var tables = tables();
+        final long version = cache.version(tables);
+        final List<Object[]> rows = new ArrayList<>();
+        final RowValues[] row = new RowValues[1];
+
+        run(rs -> {
+            try {
+                if (row[0] == null)
+                    row[0] = new RowValues(rs);
 
-                record.readFrom(map);
-                records.add((T) record);
+                rows.add(row[0].read(rs).toArray());
+                records.add(hydrator.read(row[0]));
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
-
         });
 
+        cache.put(key, tables, version,
+                new QueryCache.Result(row[0] != null ? row[0].getLayout() : null, rows), cacheTtl);
+
         return records;
     }
 
-    public <T> void runToRecord(Supplier<T> supplier, Consumer<T> fun) throws SQLException {
-        run(rs -> {
-            var record = (Entity) supplier.get();
-            var map = new MapValues();
+    /**
+     * Tables read by the command (the field is a raw Command)
+     */
+    private Set<String> tables() {
+        return ((Command<?>) command).getTables();
+    }
 
-            try {
-                var metadata = rs.getMetaData();
-                var count = metadata.getColumnCount();
+    /**
+     * Gets a result from the query cache
+     * 
+     * @return cached result or null if it isn't in the cache
+     */
+    private QueryCache.Result lookup(QueryCache cache, QueryCache.Key key, String sql) {
+        final var event = begin(new DBEvents.Cache());
+        final var result = cache.get(key);
 
-                for (int x = 1; x <= count; x++) {
-                    var name = metadata.getColumnName(x);
-                    map.put(name, rs.getObject(x));
-                }
+        event.hit = result != null;
+        event.commit(sql, command.table(), result != null ? result.rows.size() : 0);
 
-                record.readFrom(map);
+        return result;
+    }
 
-                fun.accept((T) record);
+    public <T> void runToRecord(Supplier<T> supplier, Consumer<T> fun) throws SQLException {
+        final var hydrator = new Hydrator<>(supplier);
 
+        run(rs -> {
+            try {
+                fun.accept(hydrator.read(rs));
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
         });
     }
 
-    public Object runValue() throws SQLException {
-        if (!command.hasParameters()) {
-            final var result = run();
-            if (result.next()) {
-                return result.getObject(1);
+    /**
+     * Runs a select query and returns its records as a lazy stream: rows are read
+     * from the open result set while the stream is consumed, so any number of
+     * records can be processed in constant memory. The stream holds a connection
+     * (and the result set) until it's exhausted or closed, so use it with
+     * try-with-resources. On MySQL the rows are streamed one by one
+     * (Integer.MIN_VALUE fetch size) unless fetchSize() is given
+     * 
+     * @param supplier creates the entity objects
+     * @return stream of records
+     * @throws SQLException
+     */
+    public <T> Stream<T> stream(Supplier<T> supplier) throws SQLException {
+        final String sql = command.toString();
+        final var conn = acquire();
+        final long started = started();
+        final int streamFetchSize = connection.getDialect().streamingFetchSize(fetchSize);
+        final Statement stm;
+        final ResultSet result;
+
+        try {
+            if (!hasParameters()) {
+                stm = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+
+                try {
+                    stm.setFetchSize(streamFetchSize);
+                    result = executeQuery(stm, sql);
+                } catch (SQLException | RuntimeException e) {
+                    stm.close();
+                    throw e;
+                }
+            } else {
+                stm = getPreparedStatement(conn, sql, null);
+
+                try {
+                    stm.setFetchSize(streamFetchSize);
+                    result = executeQuery((PreparedStatement) stm, sql);
+                } catch (SQLException | RuntimeException e) {
+                    releasePreparedStatement(conn, (PreparedStatement) stm);
+                    throw e;
+                }
             }
-        } else {
-            try (var ps = getPreparedStatement(command.toString(), null)) {
-                // final var params = command.getParameters();
+        } catch (SQLException | RuntimeException e) {
+            release(conn);
+            throw e;
+        }
 
-                // for (int x = 0; x < params.size(); x++) {
-                //     ps.setObject(x + 1, params.get(x));
-                // }
+        final var hydrator = new Hydrator<>(supplier);
+        final var closed = new AtomicBoolean();
+        final long[] rows = new long[1];
+        final Runnable close = () -> {
+            if (closed.compareAndSet(false, true)) {
+                record(sql, started, rows[0]);
 
-                final var result = ps.executeQuery();
+                try {
+                    result.close();
 
-                if (result.next())
-                    return result.getObject(1);
+                    if (stm instanceof PreparedStatement)
+                        releasePreparedStatement(conn, (PreparedStatement) stm);
+                    else
+                        stm.close();
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    release(conn);
+                }
             }
+        };
+
+        final var spliterator = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                if (closed.get())
+                    return false;
+
+                try {
+                    if (!result.next()) {
+                        close.run();
+                        return false;
+                    }
+
+                    action.accept(hydrator.read(result));
+                    rows[0]++;
+                    return true;
+                } catch (SQLException e) {
+                    close.run();
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        return StreamSupport.stream(spliterator, false).onClose(close);
+    }
+
+    /**
+     * Runs a select query and writes its rows to a CSV file while they are read
+     * from the result set (see CsvExport), so any number of rows is exported in
+     * constant memory
+     * 
+     * @param path    CSV file (replaced if it exists)
+     * @param options export options
+     * @return number of exported rows
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long exportCsv(Path path, CsvExport.Options options) throws SQLException, IOException {
+        final String sql = command.toString();
+        final var conn = acquire();
+        final long started = started();
+        final int streamFetchSize = connection.getDialect().streamingFetchSize(fetchSize);
+        final long rows;
+
+        try {
+            if (!hasParameters()) {
+                try (var stm = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    stm.setFetchSize(streamFetchSize);
+
+                    try (var result = executeQuery(stm, sql)) {
+                        final var event = begin(new DBEvents.Fetch());
+
+                        rows = CsvExport.write(result, path, options);
+                        event.commit(sql, command.table(), rows);
+                    }
+                }
+            } else {
+                final var ps = getPreparedStatement(conn, sql, null);
+
+                try {
+                    ps.setFetchSize(streamFetchSize);
+
+                    try (var result = executeQuery(ps, sql)) {
+                        final var event = begin(new DBEvents.Fetch());
+
+                        rows = CsvExport.write(result, path, options);
+                        event.commit(sql, command.table(), rows);
+                    }
+                } finally {
+                    releasePreparedStatement(conn, ps);
+                }
+            }
+        } finally {
+            release(conn);
+        }
+
+        record(sql, started, rows);
+
+        return rows;
+    }
+
+    public long exportCsv(Path path) throws SQLException, IOException {
+        return exportCsv(path, CsvExport.Options.create());
+    }
+
+    public Object runValue() throws SQLException {
+        final var cache = activeCache();
+
+        if (cache == null)
+            return fetchValue();
+
+        final String sql = command.toString();
+        final var key = new QueryCache.Key(sql, command.getParameters());
+        final var cachedResult = lookup(cache, key, sql);
+
+        if (cachedResult != null)
+            return cachedResult.rows.get(0)[0];
+
+        final var tables = tables();
+        final long version = cache.version(tables);
+        final var value = fetchValue();
+
+        cache.put(key, tables, version, new QueryCache.Result(null, List.<Object[]>of(new Object[] { value })),
+                cacheTtl);
+
+        return value;
+    }
+
+    private Object fetchValue() throws SQLException {
+        final String sql = command.toString();
+        final var conn = acquire();
+        final long started = started();
+
+        try {
+            if (!hasParameters()) {
+                try (var stm = getStatement(conn);
+                        var result = executeQuery(stm, sql)) {
+                    if (result.next()) {
+                        final var value = result.getObject(1);
+                        record(sql, started, 1);
+                        return value;
+                    }
+                }
+            } else {
+                final var ps = getPreparedStatement(conn, sql, null);
+
+                try (var result = executeQuery(ps, sql)) {
+                    if (result.next()) {
+                        final var value = result.getObject(1);
+                        record(sql, started, 1);
+                        return value;
+                    }
+                } finally {
+                    releasePreparedStatement(conn, ps);
+                }
+            }
+
+            record(sql, started, 0);
+        } finally {
+            release(conn);
         }
 
         return null;
@@ -230,19 +1236,47 @@ public class Query {
     //     return null;
     // }
 
-    protected PreparedStatement getPreparedStatement(String query, Boolean generateKeys) throws SQLException {
-        PreparedStatement ps;
+    /**
+     * Gets a prepared statement (from the statement cache of the connection if
+     * enabled) with the command parameters bound. It must be given back with
+     * releasePreparedStatement() instead of being closed
+     * 
+     * @param conn         leased connection
+     * @param query        SQL text
+     * @param generateKeys null for selects, true/false for updates
+     * @return prepared statement
+     * @throws SQLException
+     */
+    protected PreparedStatement getPreparedStatement(Connection conn, String query, Boolean generateKeys)
+            throws SQLException {
+        final PreparedStatement ps = statements(conn).prepare(query, generateKeys);
 
-        if (generateKeys == null) {
-            ps = connection.getConnection().prepareStatement(query);
-        } else if (generateKeys) {
-            ps = connection.getConnection().prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
-        } else {
-            ps = connection.getConnection().prepareStatement(query, Statement.NO_GENERATED_KEYS);
+        try {
+            if (generateKeys == null) {
+                ps.setFetchSize(fetchSize);
+                ps.setMaxRows(maxRows); // Also resets the limit of a cached statement
+            }
+
+            if (binder != null)
+                binder.bind(ps);
+            else
+                setParameters(ps, command.getParameters());
+        } catch (SQLException | RuntimeException e) {
+            releasePreparedStatement(conn, ps);
+            throw e;
         }
 
-        var parameters = command.getParameters();
+        return ps;
+    }
 
+    /**
+     * Binds a list of values to the parameters of a prepared statement
+     * 
+     * @param ps         prepared statement
+     * @param parameters values in parameter order
+     * @throws SQLException
+     */
+    protected void setParameters(PreparedStatement ps, List<?> parameters) throws SQLException {
         for (int x = 0; x < parameters.size(); x++) {
             var param = parameters.get(x);
 
@@ -262,8 +1296,18 @@ public class Query {
                 ps.setBoolean(x + 1, (Boolean) param);
             else if (param instanceof DBNull)
                 ps.setNull(x + 1, ((DBNull) param).type);
+            else
+                ps.setObject(x + 1, param);
         }
+    }
 
-        return ps;
+    /**
+     * Gives back a statement obtained with getPreparedStatement()
+     * 
+     * @param conn leased connection
+     * @param ps   prepared statement
+     */
+    protected void releasePreparedStatement(Connection conn, PreparedStatement ps) {
+        statements(conn).release(ps);
     }
 }
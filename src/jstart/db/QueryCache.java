@@ -0,0 +1,333 @@
+package jstart.db;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Cache of select query results of a DBConnection, keyed by SQL text and
+ * parameters. Results are invalidated by table (including the tables of the
+ * subselects of their filters) when an insert, update or delete on that table
+ * runs through the same connection, or when their time to live expires. The
+ * cache is bounded by the total number of cached rows. Rows are copied in and
+ * out of the cache, so callers never share mutable values (dates, byte arrays)
+ */
+public class QueryCache {
+    /**
+     * Snapshot of the cache counters
+     */
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+        private final long invalidations;
+        private final long rows;
+        private final int entries;
+
+        private Stats(long hits, long misses, long invalidations, long rows, int entries) {
+            this.hits = hits;
+            this.misses = misses;
+            this.invalidations = invalidations;
+            this.rows = rows;
+            this.entries = entries;
+        }
+
+        /**
+         * @return number of queries served from the cache
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return number of cached queries run against the database
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return number of results removed by writes on their tables
+         */
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        /**
+         * @return number of cached rows
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return number of cached results
+         */
+        public int getEntries() {
+            return entries;
+        }
+
+        @Override
+        public String toString() {
+            return "entries=%d, rows=%d, hits=%d, misses=%d, invalidations=%d"
+                    .formatted(entries, rows, hits, misses, invalidations);
+        }
+    }
+
+    /**
+     * Cached result of a query: the column layout and the values of every row
+     */
+    static class Result {
+        final RowValues.Layout layout;
+        final List<Object[]> rows;
+
+        Result(RowValues.Layout layout, List<Object[]> rows) {
+            this.layout = layout;
+            this.rows = rows;
+        }
+
+        /**
+         * Copy of the result with its own rows and mutable values
+         */
+        Result copy() {
+            var copy = new ArrayList<Object[]>(rows.size());
+
+            for (var row : rows) {
+                var values = row.clone();
+
+                for (int x = 0; x < values.length; x++) {
+                    if (values[x] instanceof Date)
+                        values[x] = ((Date) values[x]).clone();
+                    else if (values[x] instanceof byte[])
+                        values[x] = ((byte[]) values[x]).clone();
+                }
+
+                copy.add(values);
+            }
+
+            return new Result(layout, copy);
+        }
+    }
+
+    /**
+     * Cache key (SQL text and parameters)
+     */
+    static class Key {
+        private final String sql;
+        private final List<Object> parameters;
+
+        Key(String sql, List<?> parameters) {
+            this.sql = sql;
+            this.parameters = parameters != null ? new ArrayList<>(parameters) : List.of();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).sql.equals(sql) && ((Key) o).parameters.equals(parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sql, parameters);
+        }
+    }
+
+    private static class Entry {
+        final Result result;
+        final Set<String> tables;
+        final long expires;
+
+        Entry(Result result, Set<String> tables, long expires) {
+            this.result = result;
+            this.tables = Set.copyOf(tables);
+            this.expires = expires;
+        }
+    }
+
+    private final long maxRows;
+    private final long defaultTtl;
+    private final LinkedHashMap<Key, Entry> entries;
+    private final Map<String, Long> versions;
+    private final Map<String, Set<Key>> byTable;
+    private long rows;
+    private long hits;
+    private long misses;
+    private long invalidations;
+
+    /**
+     * Creates a query cache
+     *
+     * @param maxRows    maximum number of cached rows of all results
+     * @param defaultTtl milliseconds a result stays in the cache when the query
+     *                   doesn't give one (0 for no limit)
+     */
+    QueryCache(long maxRows, long defaultTtl) {
+        this.maxRows = maxRows;
+        this.defaultTtl = defaultTtl;
+        this.entries = new LinkedHashMap<>(64, 0.75f, true);
+        this.versions = new HashMap<>();
+        this.byTable = new HashMap<>();
+    }
+
+    /**
+     * Normalizes a table expression of a command ("schema.Table t" -> "table")
+     */
+    static String tableName(String table) {
+        if (table == null)
+            return "";
+
+        var name = table.trim().split("\\s+")[0];
+        return name.replaceAll("[\"`\\[\\]]", "").toLowerCase();
+    }
+
+    /**
+     * Gets the current version of a set of tables, to detect writes happening
+     * while a query runs
+     *
+     * @param tables table names
+     * @return version (sum of table versions)
+     */
+    synchronized long version(Set<String> tables) {
+        long version = 0;
+
+        for (var table : tables) {
+            version += versions.getOrDefault(table, 0L);
+        }
+
+        return version;
+    }
+
+    /**
+     * Gets a copy of a cached result
+     *
+     * @param key query key
+     * @return result or null if not cached (or expired)
+     */
+    Result get(Key key) {
+        final var result = find(key);
+        return result != null ? result.copy() : null;
+    }
+
+    private synchronized Result find(Key key) {
+        final var entry = entries.get(key);
+
+        if (entry == null || entry.expires < System.currentTimeMillis()) {
+            if (entry != null)
+                remove(key, entry);
+
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.result;
+    }
+
+    /**
+     * Stores a result unless one of its tables was written since the query
+     * started
+     *
+     * @param key     query key
+     * @param tables  tables read by the query
+     * @param version version of the tables when the query started
+     * @param result  query result
+     * @param ttl     milliseconds the result stays in the cache (negative for
+     *                the default time to live)
+     */
+    void put(Key key, Set<String> tables, long version, Result result, long ttl) {
+        if (result.rows.size() <= maxRows)
+            store(key, tables, version, result.copy(), ttl);
+    }
+
+    private synchronized void store(Key key, Set<String> tables, long version, Result result, long ttl) {
+        if (version(tables) != version)
+            return;
+
+        if (ttl < 0)
+            ttl = defaultTtl;
+
+        final var old = entries.get(key);
+
+        if (old != null)
+            remove(key, old);
+
+        final var entry = new Entry(result, tables, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE);
+
+        entries.put(key, entry);
+        rows += result.rows.size();
+
+        for (var table : entry.tables) {
+            byTable.computeIfAbsent(table, t -> new HashSet<>()).add(key);
+        }
+
+        var it = entries.entrySet().iterator();
+
+        while (rows > maxRows && it.hasNext()) {
+            var eldest = it.next();
+
+            it.remove();
+            rows -= eldest.getValue().result.rows.size();
+            unindex(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * Removes all results reading a table
+     *
+     * @param table table name
+     */
+    synchronized void invalidate(String table) {
+        final var name = tableName(table);
+
+        versions.merge(name, 1L, Long::sum);
+
+        final var keys = byTable.get(name);
+
+        if (keys == null)
+            return;
+
+        for (var key : new ArrayList<>(keys)) {
+            remove(key, entries.get(key));
+            invalidations++;
+        }
+    }
+
+    /**
+     * Removes all results
+     */
+    public synchronized void clear() {
+        entries.clear();
+        byTable.clear();
+        rows = 0;
+    }
+
+    /**
+     * @return snapshot of the cache counters
+     */
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, invalidations, rows, entries.size());
+    }
+
+    private void remove(Key key, Entry entry) {
+        entries.remove(key);
+        rows -= entry.result.rows.size();
+        unindex(key, entry);
+    }
+
+    /**
+     * Removes a result from the index of its tables
+     */
+    private void unindex(Key key, Entry entry) {
+        for (var table : entry.tables) {
+            final var keys = byTable.get(table);
+
+            if (keys != null && keys.remove(key) && keys.isEmpty())
+                byTable.remove(table);
+        }
+    }
+}
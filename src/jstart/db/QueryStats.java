@@ -0,0 +1,325 @@
+package jstart.db;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Execution statistics of the queries of a connection, grouped by SQL shape
+ * (the SQL text with its literals replaced by ?). Every shape counts calls,
+ * rows and latency, with a log-linear latency histogram (like HdrHistogram,
+ * about 12% precision) for percentiles. Recording only adds counters, so it
+ * can stay enabled in production. Queries slower than a threshold can be
+ * written to a slow query log with their bound parameters
+ */
+public class QueryStats {
+    /**
+     * Statistics of a SQL shape at the moment of the snapshot
+     */
+    public static class Snapshot {
+        private final String sql;
+        private final long calls;
+        private final long rows;
+        private final long totalTime;
+        private final long maxTime;
+        private final long[] histogram;
+
+        private Snapshot(String sql, long calls, long rows, long totalTime, long maxTime, long[] histogram) {
+            this.sql = sql;
+            this.calls = calls;
+            this.rows = rows;
+            this.totalTime = totalTime;
+            this.maxTime = maxTime;
+            this.histogram = histogram;
+        }
+
+        /**
+         * @return normalized SQL text
+         */
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * @return number of executions
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return rows returned (selects) or affected (writes)
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return microseconds of all the executions
+         */
+        public long getTotalTime() {
+            return totalTime;
+        }
+
+        /**
+         * @return microseconds of the slowest execution
+         */
+        public long getMaxTime() {
+            return maxTime;
+        }
+
+        /**
+         * @return mean microseconds of an execution
+         */
+        public double getMeanTime() {
+            return calls == 0 ? 0 : (double) totalTime / calls;
+        }
+
+        /**
+         * Returns the latency under which a percentage of the executions ran
+         *
+         * @param percentile percentage (0-100)
+         * @return microseconds (highest value of its histogram bucket)
+         */
+        public long getPercentile(double percentile) {
+            long count = 0;
+
+            for (var value : histogram) {
+                count += value;
+            }
+
+            if (count == 0)
+                return 0;
+
+            final long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+            long seen = 0;
+
+            for (int x = 0; x < histogram.length; x++) {
+                seen += histogram[x];
+
+                if (seen >= rank)
+                    return Math.min(maxTime, highestValue(x));
+            }
+
+            return maxTime;
+        }
+
+        public long getP50() {
+            return getPercentile(50);
+        }
+
+        public long getP99() {
+            return getPercentile(99);
+        }
+
+        public long getP999() {
+            return getPercentile(99.9);
+        }
+
+        @Override
+        public String toString() {
+            return "calls=%d, rows=%d, total=%dus, mean=%.0fus, p50=%dus, p99=%dus, p999=%dus, max=%dus: %s"
+                    .formatted(calls, rows, totalTime, getMeanTime(), getP50(), getP99(), getP999(), maxTime, sql);
+        }
+    }
+
+    /**
+     * Counters of a SQL shape
+     */
+    private static class Shape {
+        final LongAdder calls = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder totalTime = new LongAdder();
+        final AtomicLong maxTime = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void record(long micros, long count) {
+            calls.increment();
+            rows.add(count);
+            totalTime.add(micros);
+            histogram.incrementAndGet(bucket(micros));
+
+            long max = maxTime.get();
+
+            while (micros > max && !maxTime.compareAndSet(max, micros)) {
+                max = maxTime.get();
+            }
+        }
+    }
+
+    private static final int SUB_BUCKETS = 8; // 3 bits
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int MAX_EXPONENT = 40; // ~12 days in microseconds
+    private static final int BUCKETS = LINEAR + (MAX_EXPONENT - 3) * SUB_BUCKETS;
+    private static final int MAX_SHAPES = 10000;
+
+    private static final Pattern STRINGS = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBERS = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+    private static final Pattern IN_LISTS = Pattern.compile("(?i)\\bIN\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+    private static final Pattern ROWS = Pattern
+            .compile("(\\((?:\\s*\\?\\s*,)*\\s*\\?\\s*\\))(?:\\s*,\\s*\\((?:\\s*\\?\\s*,)*\\s*\\?\\s*\\))+");
+
+    private static final ConcurrentHashMap<String, String> normalized = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Shape> shapes;
+    private volatile long slowThreshold;
+    private volatile Consumer<String> slowLog;
+
+    QueryStats() {
+        shapes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Writes every query slower than a threshold, with its bound parameters, to
+     * a log
+     *
+     * @param threshold milliseconds (0 disables the log)
+     * @param log       receives a line for every slow query
+     * @return stats object
+     */
+    public QueryStats slowQueryLog(long threshold, Consumer<String> log) {
+        this.slowLog = log;
+        this.slowThreshold = threshold * 1_000_000;
+        return this;
+    }
+
+    /**
+     * Returns the statistics of every SQL shape, from the most to the least
+     * total time
+     *
+     * @return snapshot of the counters
+     */
+    public List<Snapshot> getSnapshot() {
+        var list = new ArrayList<Snapshot>(shapes.size());
+
+        shapes.forEach((sql, shape) -> {
+            var histogram = new long[BUCKETS];
+
+            for (int x = 0; x < BUCKETS; x++) {
+                histogram[x] = shape.histogram.get(x);
+            }
+
+            list.add(new Snapshot(sql, shape.calls.sum(), shape.rows.sum(), shape.totalTime.sum(),
+                    shape.maxTime.get(), histogram));
+        });
+
+        list.sort(Comparator.comparingLong(Snapshot::getTotalTime).reversed());
+
+        return list;
+    }
+
+    /**
+     * Clears all the counters
+     */
+    public void reset() {
+        shapes.clear();
+    }
+
+    /**
+     * Records an execution of a query
+     *
+     * @param sql     SQL text run
+     * @param command command of the query (for the parameters of the slow log)
+     * @param nanos   elapsed nanoseconds
+     * @param rows    rows returned or affected
+     */
+    void record(String sql, Command<?> command, long nanos, long rows) {
+        var shape = shapes.get(shape(sql));
+
+        if (shape == null) {
+            if (shapes.size() >= MAX_SHAPES) // Too many shapes: SQL with literals that can't be normalized
+                return;
+
+            shape = shapes.computeIfAbsent(shape(sql), s -> new Shape());
+        }
+
+        shape.record(nanos / 1000, rows);
+
+        final long threshold = slowThreshold;
+        final var log = slowLog;
+
+        if (threshold > 0 && nanos >= threshold && log != null) {
+            final var parameters = command != null ? command.getParameters() : null;
+
+            log.accept("Slow query (%d ms, %d rows): %s%s".formatted(nanos / 1_000_000, rows, sql,
+                    parameters != null && !parameters.isEmpty() ? " " + parameters : ""));
+        }
+    }
+
+    /**
+     * Shape of a SQL text (see normalizeSql()), cached because the same texts
+     * run again and again
+     *
+     * @param sql SQL text
+     * @return normalized SQL text
+     */
+    static String shape(String sql) {
+        var shape = normalized.get(sql);
+
+        if (shape == null) {
+            shape = normalizeSql(sql);
+
+            if (normalized.size() >= MAX_SHAPES)
+                normalized.clear();
+
+            normalized.put(sql, shape);
+        }
+
+        return shape;
+    }
+
+    /**
+     * Replaces string and number literals with ?, and collapses IN lists and
+     * rows of multi-row inserts, so queries differing only in their values have
+     * the same shape
+     *
+     * @param sql SQL text
+     * @return normalized SQL text
+     */
+    static String normalizeSql(String sql) {
+        var shape = STRINGS.matcher(sql).replaceAll("?");
+
+        shape = NUMBERS.matcher(shape).replaceAll("?");
+        shape = IN_LISTS.matcher(shape).replaceAll("IN (?...)");
+        shape = ROWS.matcher(shape).replaceAll("$1,...");
+
+        return shape;
+    }
+
+    /**
+     * Histogram bucket of a value: exact under 16, then 8 buckets for every
+     * power of two
+     */
+    static int bucket(long value) {
+        if (value < LINEAR)
+            return (int) Math.max(0, value);
+
+        final int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(value));
+
+        if (exponent == MAX_EXPONENT && value >= 1L << (MAX_EXPONENT + 1))
+            return BUCKETS - 1;
+
+        final int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Highest value of a histogram bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < LINEAR)
+            return bucket;
+
+        final int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        final int sub = (bucket - LINEAR) % SUB_BUCKETS;
+
+        return ((long) (SUB_BUCKETS + sub) << (exponent - 3)) + (1L << (exponent - 3)) - 1;
+    }
+}
@@ -0,0 +1,180 @@
+package jstart.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read replicas of a DBConnection (see DBConnection.addReplica()). Selects run
+ * outside a transaction are routed to a replica, while writes and transactions
+ * use the primary database. Replicas are chosen by round robin or by the least
+ * number of running queries
+ */
+public class Replicas {
+    /**
+     * How a replica is chosen for every read
+     */
+    public enum Balancing {
+        /**
+         * Every replica in turn
+         */
+        ROUND_ROBIN,
+        /**
+         * The replica with less queries running
+         */
+        LEAST_OUTSTANDING
+    }
+
+    /**
+     * Which reads go to the primary database to see the writes made before
+     * (read-your-writes)
+     */
+    public enum Stickiness {
+        /**
+         * Reads inside a transaction (they run on its connection)
+         */
+        TRANSACTION,
+        /**
+         * Also the reads of a thread for a while after it writes, until the
+         * replicas catch up
+         */
+        THREAD
+    }
+
+    /**
+     * Replica source counting its leased connections
+     */
+    private static class Replica implements ConnectionSource {
+        private final ConnectionSource source;
+        private final AtomicInteger outstanding;
+
+        Replica(ConnectionSource source) {
+            this.source = source;
+            this.outstanding = new AtomicInteger();
+        }
+
+        @Override
+        public Connection acquire() throws SQLException {
+            outstanding.incrementAndGet();
+
+            try {
+                return source.acquire();
+            } catch (SQLException | RuntimeException e) {
+                outstanding.decrementAndGet();
+                throw e;
+            }
+        }
+
+        @Override
+        public void release(Connection conn) {
+            try {
+                source.release(conn);
+            } finally {
+                outstanding.decrementAndGet();
+            }
+        }
+
+        @Override
+        public boolean isPooled() {
+            return source.isPooled();
+        }
+
+        @Override
+        public StatementCache statements(Connection conn) {
+            return source.statements(conn);
+        }
+
+        @Override
+        public void close() throws SQLException {
+            source.close();
+        }
+    }
+
+    private final List<Replica> replicas;
+    private final AtomicInteger next;
+    private final ThreadLocal<long[]> lastWrite;
+    private volatile Balancing balancing = Balancing.ROUND_ROBIN;
+    private volatile Stickiness stickiness = Stickiness.TRANSACTION;
+    private volatile long window;
+
+    Replicas() {
+        replicas = new CopyOnWriteArrayList<>();
+        next = new AtomicInteger();
+        lastWrite = ThreadLocal.withInitial(() -> new long[] { Long.MIN_VALUE });
+    }
+
+    void add(ConnectionSource source) {
+        replicas.add(new Replica(source));
+    }
+
+    int size() {
+        return replicas.size();
+    }
+
+    void balancing(Balancing balancing) {
+        this.balancing = balancing;
+    }
+
+    void stickiness(Stickiness stickiness, long window) {
+        if (stickiness == Stickiness.THREAD && window <= 0)
+            throw new IllegalArgumentException("Thread stickiness needs a time window");
+
+        this.stickiness = stickiness;
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+    }
+
+    /**
+     * Notes a write of the current thread
+     */
+    void written() {
+        if (stickiness == Stickiness.THREAD && !replicas.isEmpty())
+            lastWrite.get()[0] = System.nanoTime();
+    }
+
+    /**
+     * Chooses the replica of a read
+     *
+     * @return replica source or null if the read must go to the primary
+     */
+    ConnectionSource pick() {
+        final var list = replicas;
+        final int size = list.size();
+
+        if (size == 0)
+            return null;
+
+        if (stickiness == Stickiness.THREAD) {
+            final long last = lastWrite.get()[0];
+
+            if (last != Long.MIN_VALUE && System.nanoTime() - last < window)
+                return null;
+        }
+
+        if (size == 1)
+            return list.get(0);
+
+        if (balancing == Balancing.ROUND_ROBIN)
+            return list.get(Math.floorMod(next.getAndIncrement(), size));
+
+        final int start = Math.floorMod(next.getAndIncrement(), size); // Ties are broken in turn
+        Replica best = null;
+
+        for (int x = 0; x < size; x++) {
+            final var replica = list.get((start + x) % size);
+
+            if (best == null || replica.outstanding.get() < best.outstanding.get())
+                best = replica;
+        }
+
+        return best;
+    }
+
+    void close() throws SQLException {
+        for (var replica : replicas) {
+            replica.close();
+        }
+    }
+}
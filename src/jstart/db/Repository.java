@@ -4,8 +4,25 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import jstart.CsvFileReader;
 
 /**
  * Los repositorios permiten el acceso directo a la base de datos por medio de
@@ -17,7 +34,15 @@ import java.util.Map;
  */
 public class Repository<T extends Entity<T>> {
     private final Class<T> genType;
+    private final EntityMetadata<T> metadata;
     private final DBConnection dbconnection;
+    private static final int MAX_IN_KEYS = 1024;
+
+    private int batchSize = 500;
+    private volatile EntityCache<T> cache;
+    private volatile WriteBehind<T> writeBehind;
+    private volatile EntityLoader<T> loader;
+    private boolean cachedQueries;
     private static Map<Class, Repository> repositories;
 
     static {
@@ -30,6 +55,7 @@ public class Repository<T extends Entity<T>> {
         Type t = getClass().getGenericSuperclass();
         ParameterizedType pt = (ParameterizedType) t;
         genType = (Class<T>) pt.getActualTypeArguments()[0];
+        metadata = EntityMetadata.of(genType);
 
         if (!repositories.containsKey(genType))
             repositories.put(genType, this);
@@ -48,6 +74,7 @@ public class Repository<T extends Entity<T>> {
     public Repository(DBConnection dbConnection, Class<T> entityClass) {
         this.dbconnection = dbConnection;
         this.genType = entityClass;
+        this.metadata = EntityMetadata.of(genType);
 
         if (!repositories.containsKey(genType))
             repositories.put(genType, this);
@@ -78,43 +105,538 @@ public class Repository<T extends Entity<T>> {
      */
     protected Entity<T> getTypeInstance() throws NoSuchMethodException, InvocationTargetException,
             InstantiationException, IllegalAccessException {
-        return genType.getConstructor().newInstance();
+        return metadata.newInstance();
+    }
+
+    /**
+     * Returns the metadata of the entity class of the repository
+     * 
+     * @return metadata object
+     */
+    protected EntityMetadata<T> getMetadata() {
+        return metadata;
     }
 
     protected DBConnection getDbConnection() {
         return dbconnection;
     }
 
-    protected String tableName()
-            throws NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
-        return getTypeInstance().table();
+    /**
+     * Sets the number of rows sent (and committed) together by the collection
+     * write methods (insertAll, updateAll, deleteAll...). Outside a transaction
+     * every chunk is committed on its own; insertAll sends a chunk as one or
+     * more multi-row inserts where the dialect supports them
+     * 
+     * @param batchSize rows per batch
+     * @return repository object
+     */
+    public Repository<T> setBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be greater than 0");
+
+        this.batchSize = batchSize;
+        return this;
     }
 
-    public Query selectAll(Select.Order... orders) {
+    /**
+     * @return number of rows per batch of the collection write methods
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Enables a cache of entities by primary key for getById(). Entities are
+     * invalidated when they are updated or deleted through the repository
+     * 
+     * @param maxSize maximum number of cached entities (least recently used are
+     *                evicted)
+     * @param ttl     milliseconds an entity stays in the cache (0 for no limit)
+     * @return repository object
+     */
+    public Repository<T> enableCache(int maxSize, long ttl) {
+        cache = new EntityCache<>(maxSize, ttl, this::copyOf);
+        return this;
+    }
+
+    /**
+     * Disables the cache of entities
+     * 
+     * @return repository object
+     */
+    public Repository<T> disableCache() {
+        cache = null;
+        return this;
+    }
+
+    /**
+     * Enables the write-behind mode: insert(), update(), upsert() and delete() of
+     * a single entity (outside a transaction) are queued and written later in
+     * batches by a background flusher (see WriteBehind). Call flush() before
+     * the application ends. With Backpressure.DROP, a write dropped because the
+     * queue is full throws a SQLTransientException (delete() returns false)
+     * 
+     * @param options queue options
+     * @return repository object
+     */
+    public Repository<T> enableWriteBehind(WriteBehind.Options options) {
+        final var previous = writeBehind;
+
+        writeBehind = new WriteBehind<>(this, options);
+
+        if (previous != null)
+            previous.close();
+
+        return this;
+    }
+
+    /**
+     * Disables the write-behind mode, writing the pending entities
+     * 
+     * @return repository object
+     */
+    public Repository<T> disableWriteBehind() {
+        final var previous = writeBehind;
+
+        writeBehind = null;
+
+        if (previous != null)
+            previous.close();
+
+        return this;
+    }
+
+    /**
+     * Returns the write-behind queue
+     * 
+     * @return queue object or null if the write-behind mode isn't enabled
+     */
+    public WriteBehind<T> getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Writes the entities pending in the write-behind queue (if enabled)
+     */
+    public void flush() {
+        final var queue = writeBehind;
+
+        if (queue != null)
+            queue.flush();
+    }
+
+    /**
+     * Enables the coalescing of getById() outside transactions: keys requested
+     * by several threads at about the same time are read with a single query
+     * (see EntityLoader). Needs a primary key of one column
+     * 
+     * @param options loader options
+     * @return repository object
+     */
+    public Repository<T> enableCoalescing(EntityLoader.Options options) {
+        if (metadata.getKeyColumns().size() != 1)
+            throw new IllegalStateException("Coalescing needs a primary key of one column");
+
+        loader = new EntityLoader<>(this, options);
+        return this;
+    }
+
+    /**
+     * Disables the coalescing of getById()
+     * 
+     * @return repository object
+     */
+    public Repository<T> disableCoalescing() {
+        loader = null;
+        return this;
+    }
+
+    /**
+     * Returns the coalescing loader, to request entities asynchronously
+     * 
+     * @return loader object or null if the coalescing isn't enabled
+     */
+    public EntityLoader<T> getLoader() {
+        return loader;
+    }
+
+    /**
+     * Returns the counters of the cache of entities
+     * 
+     * @return snapshot of the counters or null if the cache isn't enabled
+     */
+    public EntityCache.Stats getCacheStats() {
+        final var cache = this.cache;
+        return cache != null ? cache.getStats() : null;
+    }
+
+    /**
+     * Gets an entity by its primary key, served from the cache of entities if
+     * enabled
+     * 
+     * @param id primary key value
+     * @return entity object or null if it doesn't exist
+     */
+    public T getById(Object id) {
+        final var cache = this.cache;
+        final var transaction = dbconnection.getTransaction();
+
+        if (transaction != null) { // Mapa de identidad de la transacción
+            var record = transaction.find(genType, id);
+
+            if (record != null)
+                return record;
+        }
+
+        final var queue = writeBehind;
+
+        if (queue != null && transaction == null) { // Escritura aún en la cola
+            var pending = queue.find(id);
+
+            if (pending != null)
+                return pending.operation == Transaction.Operation.DELETE ? null : copyOf(pending.record);
+        }
+
+        if (cache != null) {
+            var record = cache.get(id);
+
+            if (record != null)
+                return record;
+        }
+
+        final var loader = this.loader;
+
+        if (loader != null && transaction == null) { // Se agrupa con las lecturas de otros hilos
+            try {
+                var record = loader.load(id).join();
+                return record != null ? copyOf(record) : null;
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException
+                        ? (RuntimeException) e.getCause()
+                        : new RuntimeException(e.getCause());
+            }
+        }
+
+        final long version = cache != null ? cache.version() : 0;
+
         try {
-            Entity<T> objT = getTypeInstance();
-            Select select = dbconnection.getSelect().get()
-                    .table(objT.table());
-            Query query = dbconnection.query(select);
+            var records = selectById(id).runToRecords(metadata::newInstance);
 
-            for (var order : orders) {
-                select.order(order.isAscendent(), order.getField());
+            if (records.isEmpty())
+                return null;
+
+            if (transaction != null)
+                transaction.remember(genType, id, records.get(0));
+            else if (cache != null) // Lo leído en una transacción puede no confirmarse
+                cache.put(id, records.get(0), version);
+
+            return records.get(0);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Gets several entities by their primary keys with as few queries as
+     * possible: repeated keys are read once, entities of the cache (or of the
+     * transaction, or pending in the write-behind queue) aren't read again and
+     * the rest are read with IN lists of the size allowed by the dialect, in
+     * parallel if the connection is pooled
+     * 
+     * @param ids primary key values
+     * @return entities by the key given for them (in the order of the keys;
+     *         missing keys aren't included)
+     */
+    public <K> Map<K, T> selectByIds(Collection<K> ids) {
+        final var cache = this.cache;
+        final var queue = writeBehind;
+        final var transaction = dbconnection.getTransaction();
+        final var keys = new LinkedHashMap<Object, K>();
+        final var found = new HashMap<Object, T>();
+        final var missing = new ArrayList<Object>();
+
+        for (var id : ids) {
+            final var key = id != null ? EntityCache.normalize(id) : null;
+
+            if (key == null || keys.putIfAbsent(key, id) != null) // Clave repetida
+                continue;
+
+            T record = transaction != null ? transaction.find(genType, id) : null;
+
+            if (record == null && queue != null && transaction == null) {
+                var pending = queue.find(id);
+
+                if (pending != null) {
+                    if (pending.operation != Transaction.Operation.DELETE)
+                        found.put(key, copyOf(pending.record));
+
+                    continue;
+                }
             }
 
-            return query;
-        } catch (Exception e) {
+            if (record == null && cache != null)
+                record = cache.get(id);
+
+            if (record != null)
+                found.put(key, record);
+            else
+                missing.add(id);
+        }
+
+        if (!missing.isEmpty()) {
+            if (metadata.getKeyColumns().size() != 1) { // Claves compuestas: una consulta por clave
+                for (var id : missing) {
+                    var record = getById(id);
+
+                    if (record != null)
+                        found.put(EntityCache.normalize(id), record);
+                }
+            } else {
+                final long version = cache != null ? cache.version() : 0;
+
+                for (var record : selectByIdChunks(missing, metadata.getKeyColumns().get(0))) {
+                    final var key = keyOf(record);
+
+                    found.put(EntityCache.normalize(key), record);
+
+                    if (transaction != null)
+                        transaction.remember(genType, key, record);
+                    else if (cache != null) // No si se invalidó durante la lectura
+                        cache.put(key, record, version);
+                }
+            }
+        }
+
+        var result = new LinkedHashMap<K, T>();
+
+        keys.forEach((key, id) -> {
+            final var record = found.get(key);
+
+            if (record != null)
+                result.put(id, record);
+        });
+
+        return result;
+    }
+
+    /**
+     * Lee registros por clave con listas IN del tamaño que admite el dialecto,
+     * en paralelo si la conexión usa pool
+     */
+    private List<T> selectByIdChunks(List<Object> ids, String column) {
+        final int size = Filter.bucketFloor(Math.min(MAX_IN_KEYS, dbconnection.getDialect().maxInListSize()));
+        final var queries = new ArrayList<Query>();
+
+        for (int x = 0; x < ids.size(); x += size) {
+            final var chunk = ids.subList(x, Math.min(ids.size(), x + size));
+            queries.add(selectByFilter(Filter.params().field(column).in(chunk)));
+        }
+
+        final var pool = dbconnection.getPool();
+        var records = new ArrayList<T>(ids.size());
+
+        try {
+            if (queries.size() == 1 || pool == null || dbconnection.getTransaction() != null) {
+                for (var query : queries) {
+                    records.addAll(query.runToRecords(metadata::newInstance));
+                }
+
+                return records;
+            }
+
+            final var executor = new ForkJoinPool(Math.min(queries.size(), pool.getMaxSize()));
+
+            try {
+                var tasks = new ArrayList<ForkJoinTask<List<T>>>(queries.size());
+
+                for (var query : queries) {
+                    tasks.add(executor.submit(() -> query.runToRecords(metadata::newInstance)));
+                }
+
+                for (var task : tasks) {
+                    records.addAll(task.join());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            return records;
+        } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Copy of a record of the repository (copy() returns an Entity<T>, which
+     * is a T for the entity classes)
+     */
+    @SuppressWarnings("unchecked")
+    private T copyOf(T record) {
+        return (T) record.copy();
+    }
+
+    /**
+     * Removes a record from the cache of entities (if enabled)
+     */
+    private void invalidate(T record) {
+        final var cache = this.cache;
+
+        if (cache != null && record.hasPrimaryKey())
+            cache.invalidate(keyOf(record));
+    }
+
+    /**
+     * Registra una escritura en la transacción del hilo (si la hay) para
+     * ejecutarla en lote más tarde
+     * 
+     * @return true si la escritura queda pendiente en la transacción
+     */
+    private boolean defer(Transaction.Operation operation, T record) {
+        final var transaction = dbconnection.getTransaction();
+
+        if (transaction == null || (operation != Transaction.Operation.INSERT && !record.hasPrimaryKey()))
+            return false;
+
+        final var shape = operation == Transaction.Operation.DELETE ? List.<String>of() : columnsOf(record, "");
+
+        if (!transaction.defer(this, operation, metadata.getTable(), shape, record))
+            return false;
+
+        invalidate(record);
+        transaction.afterCommit(() -> invalidate(record)); // Leído por otros hilos antes de confirmar
+
+        if (record.hasPrimaryKey()) {
+            if (operation == Transaction.Operation.DELETE)
+                transaction.forget(genType, keyOf(record));
+            else
+                transaction.remember(genType, keyOf(record), record);
+        }
+
+        return true;
+    }
+
+    /**
+     * Encola una escritura en la cola de escritura diferida (si está activa y no
+     * hay transacción en el hilo)
+     * 
+     * @return true si la escritura queda en la cola
+     * @throws SQLTransientException si la cola está llena y descarta la escritura
+     *                               (Backpressure.DROP)
+     */
+    private boolean enqueue(Transaction.Operation operation, T record) throws SQLTransientException {
+        final var queue = writeBehind;
+
+        if (queue == null || dbconnection.getTransaction() != null)
+            return false;
+
+        final var key = record.hasPrimaryKey() ? keyOf(record) : null;
+
+        if (key == null && operation != Transaction.Operation.INSERT)
+            return false;
+
+        invalidate(record);
+
+        if (!queue.enqueue(operation, record, key))
+            throw new SQLTransientException("Write dropped: the write-behind queue is full");
+
+        return true;
+    }
+
+    /**
+     * Ejecuta en lote las escrituras pendientes de una transacción
+     */
+    void runDeferred(Transaction.Operation operation, List<T> records) throws SQLException {
+        switch (operation) {
+            case INSERT:
+                insertAll(records);
+                break;
+            case UPDATE:
+                updateAll(records);
+                break;
+            case UPSERT:
+                upsertAll(records);
+                break;
+            case DELETE:
+                deleteAll(records);
+                break;
+        }
+    }
+
+    /**
+     * Primary key value of a record (a list of values for composite keys)
+     */
+    protected Object keyOf(T record) {
+        final var columns = metadata.getKeyColumns();
+        final var mapper = mapperOf(record);
+        MapValues data = null;
+
+        if (mapper == null) {
+            data = new MapValues();
+            record.writeTo(data);
+        }
+
+        if (columns.size() == 1)
+            return mapper != null ? mapper.get(record, columns.get(0)) : data.get(columns.get(0));
+
+        var values = new ArrayList<Object>(columns.size());
+
+        for (var column : columns) {
+            values.add(mapper != null ? mapper.get(record, column) : data.get(column));
+        }
+
+        return values;
+    }
+
+    /**
+     * Marks the queries of selectAll(), selectByFilter(), selectValue() and
+     * count() to be served from the query cache of the connection (see
+     * DBConnection.enableQueryCache())
+     * 
+     * @param cachedQueries true to cache the queries
+     * @return repository object
+     */
+    public Repository<T> setCachedQueries(boolean cachedQueries) {
+        this.cachedQueries = cachedQueries;
+        return this;
+    }
+
+    /**
+     * Creates the query of a select command, marked as cached if the repository
+     * caches its queries
+     */
+    private Query query(Select select) {
+        var query = dbconnection.query(select);
+        return cachedQueries ? query.cached() : query;
+    }
+
+    protected String tableName()
+            throws NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
+        return metadata.getTable();
+    }
+
+    public Query selectAll(Select.Order... orders) {
+        return select(List.of(), null, orders);
+    }
+
+    /**
+     * Creates a select of some columns of all the records. The records read
+     * with runToRecords() only have those fields set (leave out the primary key
+     * and they can't be updated or deleted)
+     * 
+     * @param columns columns to read
+     * @param orders  order of the records
+     * @return query object
+     */
+    public Query selectAll(List<String> columns, Select.Order... orders) {
+        return select(columns, null, orders);
+    }
+
     public Query selectById(Object value) {
         try {
-            Entity<T> objT = getTypeInstance();
-
             return dbconnection.query(
                     dbconnection.getSelect().get()
-                            .table(objT.table())
-                            .where(Filter.by(objT.primaryKey(), "=", "?"))
+                            .table(metadata.getTable())
+                            .where(Filter.by(metadata.getPrimaryKey(), "=", "?"))
                             .param(value));
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -122,12 +644,92 @@ public class Repository<T extends Entity<T>> {
     }
 
     public Query selectByFilter(Filter filter, Select.Order... orders) {
+        return select(List.of(), filter, orders);
+    }
+
+    /**
+     * Creates a select of some columns of the records matching a filter. The
+     * records read with runToRecords() only have those fields set
+     * 
+     * @param columns columns to read
+     * @param filter  filter of records
+     * @param orders  order of the records
+     * @return query object
+     */
+    public Query selectByFilter(List<String> columns, Filter filter, Select.Order... orders) {
+        return select(columns, filter, orders);
+    }
+
+    /**
+     * Reads all the records into a projection: a record or an interface with
+     * getters, whose names are the columns to read
+     * 
+     * <pre>
+     * record UserName(int id, String name) {}
+     * List&lt;UserName&gt; names = users.selectAll(UserName.class);
+     * </pre>
+     * 
+     * @param projection projection type
+     * @param orders     order of the records
+     * @return projection objects
+     */
+    public <P> List<P> selectAll(Class<P> projection, Select.Order... orders) {
+        return selectByFilter(projection, null, orders);
+    }
+
+    /**
+     * Reads the records matching a filter into a projection (a record or an
+     * interface with getters, whose names are the columns to read)
+     * 
+     * @param projection projection type
+     * @param filter     filter of records (null for all)
+     * @param orders     order of the records
+     * @return projection objects
+     */
+    public <P> List<P> selectByFilter(Class<P> projection, Filter filter, Select.Order... orders) {
+        final var mapping = Projection.of(projection);
+
+        try {
+            return select(mapping.getColumns(), filter, orders).runToRows(mapping::read);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads the values of a column, without creating records
+     * 
+     * @param column column to read
+     * @param type   type of the values (primitive types give 0 or false for nulls)
+     * @param filter filter of records (null for all)
+     * @param orders order of the values
+     * @return values of the column
+     */
+    public <V> List<V> selectColumn(String column, Class<V> type, Filter filter, Select.Order... orders) {
+        try {
+            return select(List.of(column), filter, orders).runToColumn(type);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates the select of the repository table with its columns (all if
+     * empty), filter and orders
+     */
+    private Query select(List<String> columns, Filter filter, Select.Order... orders) {
         try {
-            Entity<T> objT = getTypeInstance();
             Select select = dbconnection.getSelect().get()
-                    .table(objT.table())
-                    .where(filter);
-            Query query = dbconnection.query(select);
+                    .table(metadata.getTable());
+
+            for (var column : columns) {
+                select.field(column);
+            }
+
+            if (filter != null)
+                select.where(filter);
+
+            Query query = query(select);
 
             for (var order : orders) {
                 select.order(order.isAscendent(), order.getField());
@@ -141,15 +743,14 @@ public class Repository<T extends Entity<T>> {
 
     public Object selectValue(String field, Filter filter) {
         try {
-            Entity<T> objT = getTypeInstance();
             var select = dbconnection.getSelect().get()
-                    .table(objT.table())
+                    .table(metadata.getTable())
                     .field(field);
 
             if (filter != null)
                 select.where(filter);
 
-            return dbconnection.query(select).runValue();
+            return query(select).runValue();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -167,6 +768,242 @@ public class Repository<T extends Entity<T>> {
         return (long) selectValue("count(*)", filter);
     }
 
+    /**
+     * Lee una página de registros con paginación por clave (keyset), de coste
+     * constante sea cual sea la posición de la página. Sin órdenes se ordena por
+     * la clave primaria; los campos de orden deben identificar cada fila
+     * 
+     * @param filter filtro de registros (null para todos)
+     * @param size   número de registros por página
+     * @param token  token de la página devuelto por la página anterior (null para
+     *               la primera)
+     * @param orders campos de orden de la paginación
+     * @return página de registros
+     */
+    public Page<T> selectPage(Filter filter, int size, String token, Select.Order... orders) {
+        if (size < 1)
+            throw new IllegalArgumentException("Page size must be greater than 0");
+
+        var order = orders.length > 0 ? List.of(orders)
+                : metadata.getKeyColumns().stream().map(Select.Order::by).toList();
+
+        try {
+            Select select = dbconnection.getSelect().get()
+                    .table(metadata.getTable())
+                    .count(size + 1); // Una fila más para saber si hay otra página
+
+            if (filter != null)
+                select.where(filter);
+
+            for (var o : order) {
+                select.order(o.isAscendent(), o.getField());
+            }
+
+            select.after(Page.decode(token));
+
+            var records = query(select).maxRows(size + 1).runToRecords(metadata::newInstance);
+
+            if (records.size() <= size)
+                return new Page<>(records, null);
+
+            records = new ArrayList<>(records.subList(0, size));
+
+            final var last = records.get(size - 1);
+
+            return new Page<>(records, Page.encode(valuesOf(last, order)));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Valores de los campos de orden de un registro
+     */
+    Object[] valuesOf(T record, List<Select.Order> order) {
+        final var mapper = mapperOf(record);
+        MapValues data = null;
+
+        if (mapper == null) {
+            data = new MapValues();
+            record.writeTo(data);
+        }
+
+        var values = new Object[order.size()];
+
+        for (int x = 0; x < values.length; x++) {
+            final var field = order.get(x).getField();
+            values[x] = mapper != null ? mapper.get(record, field) : data.get(field);
+        }
+
+        return values;
+    }
+
+    /**
+     * Recorre la tabla en paralelo: divide el rango de la clave primaria
+     * (numérica) en subrangos y los lee a la vez con conexiones distintas (las
+     * del pool, o conexiones dedicadas si la conexión no usa pool)
+     * 
+     * @param filter      filtro de registros (null para todos)
+     * @param parallelism número de subrangos leídos a la vez
+     * @param ordered     true para recibir los registros en orden de clave en el
+     *                    hilo llamante; false para recibirlos según se leen, desde
+     *                    varios hilos a la vez (el consumidor debe ser thread-safe)
+     * @param consumer    receptor de los registros
+     */
+    public void parallelScan(Filter filter, int parallelism, boolean ordered, Consumer<? super T> consumer) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be greater than 0");
+
+        if (metadata.getKeyColumns().size() != 1)
+            throw new IllegalStateException("Parallel scans need a primary key of one numeric column");
+
+        final var pk = metadata.getKeyColumns().get(0);
+        final var min = selectValue("min(%s)".formatted(pk), filter);
+        final var max = selectValue("max(%s)".formatted(pk), filter);
+
+        if (min == null || max == null)
+            return;
+
+        if (!(min instanceof Number) || !(max instanceof Number))
+            throw new IllegalStateException("Parallel scans need a primary key of one numeric column");
+
+        final long low = ((Number) min).longValue();
+        final long high = ((Number) max).longValue();
+        final var pool = dbconnection.getPool();
+        final int ranges = (int) Math.min(Math.min(parallelism, pool != null ? pool.getMaxSize() : parallelism),
+                high - low + 1);
+        final long step = (high - low) / ranges + 1;
+        final var cancelled = new AtomicBoolean();
+        final var executor = new ForkJoinPool(ranges);
+        ConnectionPool scanPool = null;
+
+        try {
+            if (pool == null)
+                scanPool = dbconnection.openPool(ranges);
+
+            var tasks = new ArrayList<ForkJoinTask<?>>();
+            var queues = new ArrayList<BlockingQueue<Object>>();
+
+            for (int x = 0; x < ranges && low + step * x <= high; x++) {
+                final long from = low + step * x;
+                var range = Filter.params().field(pk).get(from).and().field(pk);
+
+                if (from + step > high)
+                    range.let(high);
+                else
+                    range.lt(from + step);
+
+                if (filter != null)
+                    range.and().value(filter);
+
+                var select = dbconnection.getSelect().get()
+                        .table(metadata.getTable())
+                        .where(range);
+
+                if (ordered)
+                    select.order(pk);
+
+                final var query = dbconnection.query(select);
+
+                if (scanPool != null)
+                    query.on(scanPool);
+
+                if (ordered) {
+                    final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(1024);
+
+                    queues.add(queue);
+                    tasks.add(executor.submit(() -> {
+                        try {
+                            scanRange(query, record -> offer(queue, record, cancelled));
+                        } finally {
+                            offer(queue, queue, cancelled); // La propia cola marca el final
+                        }
+                    }));
+                } else {
+                    tasks.add(executor.submit(() -> scanRange(query, record -> {
+                        if (cancelled.get())
+                            throw new CancellationException();
+
+                        consumer.accept(record);
+                    })));
+                }
+            }
+
+            for (int x = 0; x < tasks.size(); x++) {
+                if (ordered) {
+                    final var queue = queues.get(x);
+
+                    for (var item = queue.take(); item != queue; item = queue.take()) {
+                        @SuppressWarnings("unchecked") // Todo lo que no es la marca de fin es un T
+                        final var record = (T) item;
+
+                        consumer.accept(record);
+                    }
+                }
+
+                tasks.get(x).join();
+            }
+        } catch (SQLException | InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            cancelled.set(true);
+            executor.shutdownNow();
+
+            if (scanPool != null)
+                scanPool.close();
+        }
+    }
+
+    public void parallelScan(int parallelism, boolean ordered, Consumer<? super T> consumer) {
+        parallelScan(null, parallelism, ordered, consumer);
+    }
+
+    /**
+     * Importa un fichero CSV en la tabla del repositorio (ver CsvImport); los
+     * campos de la cabecera se leen en cada entidad con readFrom()
+     * 
+     * @param reader fichero CSV abierto
+     * @return contadores de la importación
+     * @throws SQLException
+     */
+    public CsvImport.Progress importCsv(CsvFileReader reader) throws SQLException {
+        try {
+            return CsvImport.into(dbconnection, genType).run(reader);
+        } finally {
+            final var cache = this.cache;
+
+            if (cache != null)
+                cache.clear();
+        }
+    }
+
+    /**
+     * Lee los registros de un subrango de parallelScan()
+     */
+    private void scanRange(Query query, Consumer<T> consumer) {
+        try (var records = query.stream(metadata::newInstance)) {
+            records.forEach(consumer);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Pone un elemento en la cola de un subrango, esperando mientras está llena
+     * salvo que el recorrido se haya cancelado
+     */
+    private static void offer(BlockingQueue<Object> queue, Object item, AtomicBoolean cancelled) {
+        try {
+            while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                if (cancelled.get())
+                    throw new CancellationException();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        }
+    }
+
     /**
      * Inserta un registro en el repositorio del tipo indicado en la construcción
      * del repositorio
@@ -175,8 +1012,22 @@ public class Repository<T extends Entity<T>> {
      * @throws SQLException
      */
     public void insert(T record) throws SQLException {
+        if (defer(Transaction.Operation.INSERT, record) || enqueue(Transaction.Operation.INSERT, record))
+            return;
+
         var insert = Insert.query()
                 .table(record.table());
+        var mapper = mapperOf(record);
+
+        if (mapper != null) { // Los campos se enlazan directamente en la sentencia
+            var writer = mapper.writer(mapper.getColumns());
+
+            mapper.getColumns().forEach(insert::value);
+            dbconnection.query(insert).bind(ps -> writer.bind(ps, record)).run(false);
+            invalidate(record);
+            return;
+        }
+
         var data = new MapValues();
 
         record.writeTo(data);
@@ -186,6 +1037,7 @@ public class Repository<T extends Entity<T>> {
         }
 
         dbconnection.query(insert).run(false);
+        invalidate(record);
     }
 
     /**
@@ -201,6 +1053,15 @@ public class Repository<T extends Entity<T>> {
                 .table(record.table());
         var data = new MapValues();
         var idfield = record.hasPrimaryKey() ? record.primaryKey() : "";
+        var mapper = mapperOf(record);
+
+        if (mapper != null) {
+            var columns = columnsOf(record, idfield);
+            var writer = mapper.writer(columns);
+
+            columns.forEach(insert::value);
+            return dbconnection.query(insert).bind(ps -> writer.bind(ps, record)).run(true);
+        }
 
         record.writeTo(data);
 
@@ -221,11 +1082,26 @@ public class Repository<T extends Entity<T>> {
      * @throws SQLException
      */
     public void update(T record) throws SQLException {
+        if (defer(Transaction.Operation.UPDATE, record) || enqueue(Transaction.Operation.UPDATE, record))
+            return;
+
         var update = Update.query()
                 .table(record.table());
         var data = new MapValues();
         var idfield = record.hasPrimaryKey() ? record.primaryKey() : "";
         var filter = Filter.by();
+        var mapper = mapperOf(record);
+
+        if (mapper != null && !idfield.isEmpty()) {
+            var columns = columnsOf(record, idfield);
+            var writer = mapper.writer(withKey(columns, idfield));
+
+            columns.forEach(update::value);
+            update.where(Filter.by(idfield, "=", "?"));
+            dbconnection.query(update).bind(ps -> writer.bind(ps, record)).run(false);
+            invalidate(record);
+            return;
+        }
 
         record.writeTo(data);
 
@@ -235,29 +1111,47 @@ public class Repository<T extends Entity<T>> {
         }
 
         if (!idfield.isEmpty()) {
-            filter = Filter.by().field(idfield).eq(data.get(idfield));
+            filter = Filter.params().field(idfield).eq(data.get(idfield));
             update.where(filter);
         }
 
         dbconnection.query(update).run(false);
+        invalidate(record);
+    }
+
+    /**
+     * Inserta un registro o lo actualiza si ya existe uno con la misma clave
+     * primaria, en una sola sentencia (ver Upsert)
+     * 
+     * @param record
+     * @throws SQLException
+     */
+    public void upsert(T record) throws SQLException {
+        if (defer(Transaction.Operation.UPSERT, record) || enqueue(Transaction.Operation.UPSERT, record))
+            return;
+
+        upsertAll(List.of(record));
     }
 
     public boolean delete(T record) {
         try {
-            Entity<T> objT = getTypeInstance();
+            if (defer(Transaction.Operation.DELETE, record) || enqueue(Transaction.Operation.DELETE, record))
+                return true;
+
             var idfield = record.hasPrimaryKey() ? record.primaryKey() : "";
             var data = new MapValues();
 
             record.writeTo(data);
 
             var query = Delete.query()
-                    .table(objT.table())
+                    .table(metadata.getTable())
                     .where(
-                            Filter.by()
+                            Filter.params()
                                     .field(idfield)
                                     .eq(data.get(idfield)));
 
             dbconnection.query(query).run(false);
+            invalidate(record);
             return true;
 
         } catch (Exception e) {
@@ -267,16 +1161,290 @@ public class Repository<T extends Entity<T>> {
 
     public boolean delete(Filter filter) {
         try {
-            Entity<T> objT = getTypeInstance();
             var query = Delete.query()
-                    .table(objT.table())
+                    .table(metadata.getTable())
                     .where(filter);
 
             dbconnection.query(query).run(false);
-            return true;
-
-        } catch (Exception e) {
+        } catch (SQLException e) {
             return false;
         }
+
+        final var cache = this.cache;
+
+        if (cache != null) {
+            final var transaction = dbconnection.getTransaction();
+
+            cache.clear();
+
+            if (transaction != null)
+                transaction.afterCommit(cache::clear); // Leído por otros hilos antes de confirmar
+        }
+
+        return true;
+    }
+
+    /**
+     * Inserta una colección de registros con inserciones de varias filas por
+     * sentencia, divididas según los límites del dialecto (ver Insert.split()),
+     * confirmando cada bloque de getBatchSize() registros. Los dialectos sin
+     * inserciones de varias filas usan lotes JDBC
+     * 
+     * @param records
+     * @throws SQLException
+     */
+    public void insertAll(Collection<T> records) throws SQLException {
+        if (records.isEmpty())
+            return;
+
+        final var dialect = dbconnection.getDialect();
+
+        if (dialect.maxInsertRows() == 1 && dialect != Dialect.FIREBIRD) { // Lotes con los campos enlazados
+            insertBatch(records, false, false);
+            records.forEach(this::invalidate);
+            return;
+        }
+
+        final var first = records.iterator().next();
+        final var keys = columnsOf(first, "");
+        final var insert = Insert.query()
+                .table(first.table())
+                .columns(keys.toArray(new String[0]));
+        final var mapper = mapperOf(first);
+
+        for (var record : records) {
+            var row = new Object[keys.size()];
+            MapValues data = null;
+
+            if (mapper == null) {
+                data = new MapValues();
+                record.writeTo(data);
+            }
+
+            for (int x = 0; x < row.length; x++) {
+                row[x] = mapper != null ? mapper.get(record, keys.get(x)) : data.get(keys.get(x));
+            }
+
+            insert.row(row);
+        }
+
+        dbconnection.query(insert).runRows(batchSize);
+        records.forEach(this::invalidate);
+    }
+
+    /**
+     * Inserta una colección de registros usando lotes JDBC, de forma
+     * autoincremental si el sistema lo permite
+     * 
+     * @param records
+     * @return claves generadas en el orden de los registros (si el driver las
+     *         devuelve)
+     * @throws SQLException
+     */
+    public long[] insertAutoAll(Collection<T> records) throws SQLException {
+        return insertBatch(records, true, true);
+    }
+
+    /**
+     * Actualiza una colección de registros usando lotes JDBC
+     * 
+     * @param records
+     * @throws SQLException
+     */
+    public void updateAll(Collection<T> records) throws SQLException {
+        if (records.isEmpty())
+            return;
+
+        final var first = records.iterator().next();
+        final var idfield = first.hasPrimaryKey() ? first.primaryKey() : "";
+        final var keys = columnsOf(first, "");
+        final var update = Update.query()
+                .table(first.table());
+
+        keys.remove(idfield);
+        keys.forEach(update::value);
+
+        if (!idfield.isEmpty())
+            update.where(Filter.by(idfield, "=", "?"));
+        else
+            throw new SQLException("Entity without primary key cannot be updated in batch");
+
+        final var mapper = mapperOf(first);
+
+        if (mapper != null) {
+            dbconnection.query(update)
+                    .runBatch(records, mapper.writer(withKey(keys, idfield))::bind, batchSize, false);
+            records.forEach(this::invalidate);
+            return;
+        }
+
+        final var rows = new ArrayList<List<Object>>(records.size());
+
+        for (var record : records) {
+            var data = new MapValues();
+            record.writeTo(data);
+
+            var row = new ArrayList<Object>(keys.size() + 1);
+            keys.forEach(key -> row.add(data.get(key)));
+            row.add(data.get(idfield));
+            rows.add(row);
+        }
+
+        dbconnection.query(update).runBatch(rows, batchSize, false);
+        records.forEach(this::invalidate);
+    }
+
+    /**
+     * Inserta o actualiza (según exista su clave primaria) una colección de
+     * registros usando lotes JDBC
+     * 
+     * @param records
+     * @throws SQLException
+     */
+    public void upsertAll(Collection<T> records) throws SQLException {
+        if (records.isEmpty())
+            return;
+
+        final var first = records.iterator().next();
+
+        if (!first.hasPrimaryKey())
+            throw new SQLException("Entity without primary key cannot be upserted");
+
+        final var keys = columnsOf(first, "");
+        final var upsert = Upsert.query()
+                .table(first.table())
+                .key(metadata.getKeyColumns().toArray(new String[0]));
+
+        keys.forEach(upsert::value);
+
+        final var mapper = mapperOf(first);
+
+        if (mapper != null) {
+            dbconnection.query(upsert).runBatch(records, mapper.writer(keys)::bind, batchSize, false);
+            records.forEach(this::invalidate);
+            return;
+        }
+
+        final var rows = new ArrayList<List<Object>>(records.size());
+
+        for (var record : records) {
+            var data = new MapValues();
+            record.writeTo(data);
+
+            var row = new ArrayList<Object>(keys.size());
+            keys.forEach(key -> row.add(data.get(key)));
+            rows.add(row);
+        }
+
+        dbconnection.query(upsert).runBatch(rows, batchSize, false);
+        records.forEach(this::invalidate);
+    }
+
+    /**
+     * Elimina una colección de registros (por clave primaria) usando lotes JDBC
+     * 
+     * @param records
+     * @throws SQLException
+     */
+    public void deleteAll(Collection<T> records) throws SQLException {
+        if (records.isEmpty())
+            return;
+
+        final var first = records.iterator().next();
+
+        if (!first.hasPrimaryKey())
+            throw new SQLException("Entity without primary key cannot be deleted in batch");
+
+        final var idfield = first.primaryKey();
+        final var query = Delete.query()
+                .table(first.table())
+                .where(Filter.by(idfield, "=", "?"));
+        final var mapper = mapperOf(first);
+
+        if (mapper != null) {
+            dbconnection.query(query)
+                    .runBatch(records, mapper.writer(List.of(idfield))::bind, batchSize, false);
+            records.forEach(this::invalidate);
+            return;
+        }
+
+        final var rows = new ArrayList<List<Object>>(records.size());
+
+        for (var record : records) {
+            var data = new MapValues();
+            record.writeTo(data);
+            rows.add(Collections.singletonList(data.get(idfield)));
+        }
+
+        dbconnection.query(query).runBatch(rows, batchSize, false);
+        records.forEach(this::invalidate);
+    }
+
+    /**
+     * Columns written by an entity (in a stable order), excluding a field
+     */
+    private List<String> columnsOf(T record, String excluded) {
+        var mapper = mapperOf(record);
+        List<String> keys;
+
+        if (mapper != null) {
+            keys = new ArrayList<>(mapper.getColumns());
+        } else {
+            var data = new MapValues();
+            record.writeTo(data);
+            keys = new ArrayList<>(data.keySet());
+        }
+
+        keys.remove(excluded);
+
+        return keys;
+    }
+
+    private static List<String> withKey(List<String> columns, String idfield) {
+        var all = new ArrayList<>(columns);
+        all.add(idfield);
+        return all;
+    }
+
+    /**
+     * Compiled mapper of an entity with @Column fields, or null if the entity is
+     * written through writeTo()
+     */
+    @SuppressWarnings("unchecked")
+    private EntityMapper<T> mapperOf(T record) {
+        var mapper = EntityMapper.of((Class<T>) record.getClass());
+        return mapper.isMapped() ? mapper : null;
+    }
+
+    private long[] insertBatch(Collection<T> records, boolean auto, boolean generateKeys) throws SQLException {
+        if (records.isEmpty())
+            return new long[0];
+
+        final var first = records.iterator().next();
+        final var idfield = auto && first.hasPrimaryKey() ? first.primaryKey() : "";
+        final var keys = columnsOf(first, idfield);
+        final var insert = Insert.query()
+                .table(first.table());
+
+        keys.forEach(insert::value);
+
+        final var mapper = mapperOf(first);
+
+        if (mapper != null)
+            return dbconnection.query(insert)
+                    .runBatch(records, mapper.writer(keys)::bind, batchSize, generateKeys);
+
+        final var rows = new ArrayList<List<Object>>(records.size());
+
+        for (var record : records) {
+            var data = new MapValues();
+            record.writeTo(data);
+
+            var row = new ArrayList<Object>(keys.size());
+            keys.forEach(key -> row.add(data.get(key)));
+            rows.add(row);
+        }
+
+        return dbconnection.query(insert).runBatch(rows, batchSize, generateKeys);
     }
 }
@@ -0,0 +1,425 @@
+package jstart.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Reusable, array-backed view of the current row of a result set. The column
+ * layout (names and a name-to-index table) is read once per result set and
+ * every row only refills the values array, so no map is allocated per row.
+ * Entities must copy the values they need in readFrom() and not keep a
+ * reference to this object, because it's overwritten by the next row. The
+ * columns are fixed: writes only change the value of an existing column and
+ * removing columns isn't supported. It's serialized as a MapValues copy
+ */
+public class RowValues extends MapValues {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Column layout of a result set, shared by all its rows
+     */
+    public static class Layout {
+        private final String[] columns;
+        private final Map<String, Integer> indexes;
+        private final int[] keys;
+
+        /**
+         * Reads the column layout of a result set (column labels, so aliases are
+         * honoured)
+         *
+         * @param rs result set
+         * @throws SQLException
+         */
+        public Layout(ResultSet rs) throws SQLException {
+            var metadata = rs.getMetaData();
+            var count = metadata.getColumnCount();
+
+            columns = new String[count];
+            indexes = new HashMap<>(count * 2);
+
+            for (int x = 0; x < count; x++) {
+                columns[x] = metadata.getColumnLabel(x + 1);
+                indexes.put(columns[x], x); // The last of repeated labels wins, as in a HashMap
+            }
+
+            keys = new int[indexes.size()];
+
+            for (int x = 0, n = 0; x < count; x++) {
+                if (indexes.get(columns[x]) == x)
+                    keys[n++] = x;
+            }
+        }
+
+        /**
+         * @return number of columns
+         */
+        public int size() {
+            return columns.length;
+        }
+
+        /**
+         * @param index 0-based column index
+         * @return column name
+         */
+        public String getColumn(int index) {
+            return columns[index];
+        }
+
+        /**
+         * @param column column name
+         * @return 0-based index of the column or -1 if it doesn't exist
+         */
+        public int indexOf(Object column) {
+            final var index = indexes.get(column);
+            return index != null ? index : -1;
+        }
+    }
+
+    private final transient Layout layout;
+    private final transient Object[] values;
+    private transient Set<Map.Entry<String, Object>> entries;
+
+    /**
+     * Creates the row view of a result set
+     *
+     * @param rs result set
+     * @throws SQLException
+     */
+    public RowValues(ResultSet rs) throws SQLException {
+        this(new Layout(rs));
+    }
+
+    /**
+     * Creates a row view for a known column layout
+     *
+     * @param layout column layout
+     */
+    public RowValues(Layout layout) {
+        this.layout = layout;
+        this.values = new Object[layout.size()];
+    }
+
+    /**
+     * @return column layout of the row
+     */
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Reads the current row of the result set into the view
+     *
+     * @param rs result set positioned on a row
+     * @return row view
+     * @throws SQLException
+     */
+    public RowValues read(ResultSet rs) throws SQLException {
+        for (int x = 0; x < values.length; x++) {
+            values[x] = rs.getObject(x + 1);
+        }
+
+        return this;
+    }
+
+    /**
+     * @param index 0-based column index
+     * @return value of the column in the current row
+     */
+    public Object getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @return copy of the values of the current row
+     */
+    public Object[] toArray() {
+        return Arrays.copyOf(values, values.length);
+    }
+
+    /**
+     * Sets the values of the view from an array (in layout order)
+     *
+     * @param row values of a row
+     * @return row view
+     */
+    public RowValues set(Object[] row) {
+        System.arraycopy(row, 0, values, 0, values.length);
+        return this;
+    }
+
+    @Override
+    public Object get(Object key) {
+        final int index = layout.indexOf(key);
+        return index >= 0 ? values[index] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return layout.indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object getOrDefault(Object key, Object defaultValue) {
+        final int index = layout.indexOf(key);
+        return index >= 0 && values[index] != null ? values[index] : defaultValue;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        final int index = indexOf(key);
+        final var old = values[index];
+        values[index] = value;
+
+        return old;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Object> map) {
+        map.forEach(this::put);
+    }
+
+    @Override
+    public Object putIfAbsent(String key, Object value) {
+        final int index = indexOf(key);
+        final var old = values[index];
+
+        if (old == null)
+            values[index] = value;
+
+        return old;
+    }
+
+    @Override
+    public Object replace(String key, Object value) {
+        return containsKey(key) ? put(key, value) : null;
+    }
+
+    @Override
+    public boolean replace(String key, Object oldValue, Object newValue) {
+        final int index = layout.indexOf(key);
+
+        if (index < 0 || !Objects.equals(values[index], oldValue))
+            return false;
+
+        values[index] = newValue;
+        return true;
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super String, ? super Object, ? extends Object> function) {
+        for (int x = 0; x < values.length; x++) {
+            values[x] = function.apply(layout.getColumn(x), values[x]);
+        }
+    }
+
+    @Override
+    public Object computeIfAbsent(String key, Function<? super String, ? extends Object> function) {
+        final int index = indexOf(key);
+
+        if (values[index] == null)
+            values[index] = function.apply(key);
+
+        return values[index];
+    }
+
+    @Override
+    public Object computeIfPresent(String key,
+            BiFunction<? super String, ? super Object, ? extends Object> function) {
+        final int index = layout.indexOf(key);
+
+        if (index < 0 || values[index] == null)
+            return null;
+
+        return values[index] = removal(function.apply(key, values[index]));
+    }
+
+    @Override
+    public Object compute(String key, BiFunction<? super String, ? super Object, ? extends Object> function) {
+        final int index = indexOf(key);
+        return values[index] = removal(function.apply(key, values[index]));
+    }
+
+    @Override
+    public Object merge(String key, Object value,
+            BiFunction<? super Object, ? super Object, ? extends Object> function) {
+        final int index = indexOf(key);
+        final var old = values[index];
+
+        return values[index] = old == null ? value : removal(function.apply(old, value));
+    }
+
+    @Override
+    public Object remove(Object key) {
+        throw new UnsupportedOperationException("The columns of a row can't be removed");
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        throw new UnsupportedOperationException("The columns of a row can't be removed");
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("The columns of a row can't be removed");
+    }
+
+    @Override
+    public Object clone() {
+        return new MapValues(this);
+    }
+
+    /**
+     * Index of a column that must exist
+     */
+    private int indexOf(String key) {
+        final int index = layout.indexOf(key);
+
+        if (index < 0)
+            throw new UnsupportedOperationException("Column %s isn't in the row".formatted(key));
+
+        return index;
+    }
+
+    /**
+     * A null result of compute() or merge() removes the entry in a map
+     */
+    private static Object removal(Object value) {
+        if (value == null)
+            throw new UnsupportedOperationException("The columns of a row can't be removed");
+
+        return value;
+    }
+
+    /**
+     * Serializes a copy of the values (the view holds the layout of a result set)
+     */
+    private Object writeReplace() {
+        return new MapValues(this);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return values().contains(value);
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super Object> action) {
+        for (var x : layout.keys) {
+            action.accept(layout.getColumn(x), values[x]);
+        }
+    }
+
+    @Override
+    public int size() {
+        return layout.keys.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return layout.keys.length == 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (entries == null) {
+            entries = new AbstractSet<>() {
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    return new Iterator<>() {
+                        private int index;
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < layout.keys.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String, Object> next() {
+                            if (index >= layout.keys.length)
+                                throw new NoSuchElementException();
+
+                            final int x = layout.keys[index++];
+                            return new AbstractMap.SimpleImmutableEntry<>(layout.getColumn(x), values[x]);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return layout.keys.length;
+                }
+            };
+        }
+
+        return entries;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<String> iterator() {
+                final var it = entrySet().iterator();
+
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        return it.next().getKey();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return layout.keys.length;
+            }
+        };
+    }
+
+    @Override
+    public Collection<Object> values() {
+        if (layout.keys.length == values.length)
+            return Arrays.asList(values);
+
+        var visible = new ArrayList<Object>(layout.keys.length);
+
+        for (var x : layout.keys) {
+            visible.add(values[x]);
+        }
+
+        return visible;
+    }
+
+    @Override
+    public String toString() {
+        var sb = new StringBuilder("{");
+
+        for (var x : layout.keys) {
+            if (sb.length() > 1)
+                sb.append(", ");
+
+            sb.append(layout.getColumn(x)).append('=').append(values[x]);
+        }
+
+        return sb.append('}').toString();
+    }
+}
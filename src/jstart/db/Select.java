@@ -1,7 +1,11 @@
 package jstart.db;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 public class Select extends Command<Select> {
@@ -80,6 +84,7 @@ public class Select extends Command<Select> {
     private final List<Join> joins;
     private String groupBy;
     private Filter having;
+    private Object[] seekValues;
 
     protected Select() {
         orders = new ArrayList<>();
@@ -141,6 +146,89 @@ public class Select extends Command<Select> {
         return this;
     }
 
+    /**
+     * Keyset (seek) pagination: selects the rows placed after a row with the
+     * given values of the order fields, so every page costs the same whatever
+     * its position. Use it with order() on unique key fields and count() for
+     * the page size
+     * 
+     * @param lastValues values of the order fields in the last row of the
+     *                   previous page (null or empty for the first page)
+     * @return select object
+     */
+    public Select after(Object... lastValues) {
+        this.seekValues = lastValues != null && lastValues.length > 0 ? lastValues : null;
+        return this;
+    }
+
+    /**
+     * Indicates if the dialect supports row value comparisons like (a, b) > (?,
+     * ?) (overridden by classes in custom package)
+     * 
+     * @return true if row values can be used
+     */
+    protected boolean supportsRowValues() {
+        return dialect() == Dialect.MYSQL || dialect() == Dialect.SQLITE;
+    }
+
+    /**
+     * Renders the keyset pagination condition, or null if there is none
+     */
+    protected String getSeekCondition() {
+        if (seekValues == null)
+            return null;
+
+        if (seekValues.length != orders.size())
+            throw new IllegalStateException("Keyset pagination needs a value for every order field");
+
+        final boolean ascendent = orders.get(0).isAscendent();
+        final boolean sameDirection = orders.stream().allMatch(o -> o.isAscendent() == ascendent);
+
+        if (orders.size() == 1 || (sameDirection && supportsRowValues())) {
+            return "(%s) %s (%s)".formatted(
+                    orders.stream().map(Order::getField).collect(Collectors.joining(",")),
+                    ascendent ? ">" : "<",
+                    String.join(",", Collections.nCopies(orders.size(), "?")));
+        }
+
+        // (a > ? OR (a = ? AND b > ?) OR (a = ? AND b = ? AND c > ?)...)
+        List<String> terms = new ArrayList<>();
+
+        for (int x = 0; x < orders.size(); x++) {
+            List<String> term = new ArrayList<>();
+
+            for (int y = 0; y < x; y++) {
+                term.add("%s = ?".formatted(orders.get(y).getField()));
+            }
+
+            term.add("%s %s ?".formatted(orders.get(x).getField(), orders.get(x).isAscendent() ? ">" : "<"));
+            terms.add(term.size() > 1 ? "(%s)".formatted(String.join(" AND ", term)) : term.get(0));
+        }
+
+        return "(%s)".formatted(String.join(" OR ", terms));
+    }
+
+    /**
+     * Values bound by the keyset pagination condition (in placeholder order)
+     */
+    private List<Object> getSeekParameters() {
+        final boolean ascendent = orders.get(0).isAscendent();
+        final boolean sameDirection = orders.stream().allMatch(o -> o.isAscendent() == ascendent);
+
+        if (orders.size() == 1 || (sameDirection && supportsRowValues()))
+            return Arrays.asList(seekValues);
+
+        List<Object> values = new ArrayList<>();
+
+        for (int x = 0; x < orders.size(); x++) {
+            for (int y = 0; y <= x; y++) {
+                values.add(seekValues[y]);
+            }
+        }
+
+        return values;
+    }
+
     protected List<Join> getJoins() {
         return joins;
     }
@@ -165,6 +253,52 @@ public class Select extends Command<Select> {
         return offset;
     }
 
+    @Override
+    protected List<Object> getParameters() {
+        var parameters = super.getParameters();
+
+        if (seekValues != null) {
+            var all = new ArrayList<Object>();
+
+            if (parameters != null)
+                all.addAll(parameters);
+
+            all.addAll(getSeekParameters());
+            parameters = all;
+        }
+
+        if (having != null && having.hasPlaceholders()
+                && (seekValues != null || (getFilter() != null && !getFilter().getParameters().isEmpty())))
+            throw new IllegalStateException(
+                    "A ? placeholder bound with param() in HAVING can't follow the values bound by the filter");
+
+        return withFilterParameters(parameters, having);
+    }
+
+    @Override
+    Set<String> getTables() {
+        if (joins.isEmpty() && (having == null || having.getTables().isEmpty()))
+            return super.getTables();
+
+        var tables = new HashSet<>(super.getTables());
+        joins.forEach(j -> tables.add(QueryCache.tableName(j.table)));
+
+        if (having != null)
+            tables.addAll(having.getTables());
+
+        return tables;
+    }
+
+    /**
+     * Returns the SQL dialect rendered by this select object (overridden by
+     * classes in custom package)
+     * 
+     * @return dialect of the select
+     */
+    public Dialect dialect() {
+        return Dialect.GENERIC;
+    }
+
     @Override
     public String toString() {
         clear();
@@ -174,8 +308,14 @@ public class Select extends Command<Select> {
             joins.forEach(j->append(" %s", j));
         }
 
-        if (getFilter() != null) {
+        final var seek = getSeekCondition();
+
+        if (getFilter() != null && seek != null) {
+            append(" WHERE (%s) AND %s", getFilter(), seek);
+        } else if (getFilter() != null) {
             append(" WHERE %s", getFilter());
+        } else if (seek != null) {
+            append(" WHERE %s", seek);
         }
 
         if (groupBy != null) {
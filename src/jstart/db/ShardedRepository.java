@@ -0,0 +1,363 @@
+package jstart.db;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.ToIntFunction;
+
+/**
+ * Repository of an entity whose table is split (sharded) across several
+ * databases by a hash of the primary key. Reads and writes of a single entity
+ * go to the shard of its key; selects and counts of many entities run on all
+ * the shards at the same time and their results are merged (in order when
+ * orders are given, with a k-way merge of the ordered results of every shard).
+ * Shards are queried from other threads, so a transaction of the calling
+ * thread is only used by the operations of its own shard (which run on the
+ * calling thread)
+ *
+ * <pre>
+ * var users = new ShardedRepository&lt;&gt;(User.class, "users0", "users1", "users2");
+ * </pre>
+ *
+ * @param <T> entity class
+ */
+public class ShardedRepository<T extends Entity<T>> {
+    /**
+     * Operation run on a shard
+     */
+    @FunctionalInterface
+    private interface ShardCall<T extends Entity<T>, R> {
+        R call(Repository<T> shard) throws SQLException;
+    }
+
+    /**
+     * Write of the records of a shard
+     */
+    @FunctionalInterface
+    private interface ShardWrite<T extends Entity<T>> {
+        void run(Repository<T> shard, Collection<T> records) throws SQLException;
+    }
+
+    /**
+     * Next record of the ordered result of a shard
+     */
+    private static class Head {
+        final Object[] values;
+        final int shard;
+
+        Head(Object[] values, int shard) {
+            this.values = values;
+            this.shard = shard;
+        }
+    }
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        var thread = new Thread(r, "jstart-shards");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final EntityMetadata<T> metadata;
+    private final List<Repository<T>> shards;
+    private ToIntFunction<Object> shardFunction;
+
+    /**
+     * Creates a repository over the databases of several named connections (see
+     * DBConnection.create()). The order of the names is the shard number, so it
+     * must not change once there is data
+     *
+     * @param entityClass entity class
+     * @param connections names of the connections of every shard
+     */
+    public ShardedRepository(Class<T> entityClass, String... connections) {
+        if (connections.length == 0)
+            throw new IllegalArgumentException("A sharded repository needs at least one connection");
+
+        this.metadata = EntityMetadata.of(entityClass);
+        this.shards = new ArrayList<>(connections.length);
+        this.shardFunction = ShardedRepository::hash;
+
+        for (var name : connections) {
+            final var connection = DBConnection.get(name);
+
+            if (connection == null)
+                throw new IllegalArgumentException("Unknown connection: " + name);
+
+            shards.add(new Repository<>(connection, entityClass));
+        }
+    }
+
+    /**
+     * Sets the function giving the shard of a primary key value (taken modulo
+     * the number of shards). By default it's the hash code of the value, with
+     * integer types hashed as long
+     *
+     * @param shardFunction shard of a key
+     * @return repository object
+     */
+    public ShardedRepository<T> shardBy(ToIntFunction<Object> shardFunction) {
+        this.shardFunction = shardFunction;
+        return this;
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Returns the repository of a shard
+     *
+     * @param index shard number
+     * @return repository object
+     */
+    public Repository<T> getShard(int index) {
+        return shards.get(index);
+    }
+
+    /**
+     * Returns the repository of the shard of a primary key value
+     *
+     * @param id primary key value (a list of values for composite keys)
+     * @return repository object
+     */
+    public Repository<T> shardOf(Object id) {
+        return shards.get(Math.floorMod(shardFunction.applyAsInt(id), shards.size()));
+    }
+
+    private Repository<T> shardOf(T record) {
+        return shardOf(shards.get(0).keyOf(record));
+    }
+
+    private static int hash(Object key) {
+        final var value = EntityCache.normalize(key);
+        return value == null ? 0 : value.hashCode();
+    }
+
+    public T getById(Object id) {
+        return shardOf(id).getById(id);
+    }
+
+    public Query selectById(Object id) {
+        return shardOf(id).selectById(id);
+    }
+
+    public void insert(T record) throws SQLException {
+        shardOf(record).insert(record);
+    }
+
+    public void update(T record) throws SQLException {
+        shardOf(record).update(record);
+    }
+
+    public void upsert(T record) throws SQLException {
+        shardOf(record).upsert(record);
+    }
+
+    public boolean delete(T record) {
+        return shardOf(record).delete(record);
+    }
+
+    /**
+     * Inserts records grouped by shard, writing to all the shards at the same
+     * time
+     *
+     * @param records records to insert
+     * @throws SQLException
+     */
+    public void insertAll(Collection<T> records) throws SQLException {
+        byShard(records, Repository::insertAll);
+    }
+
+    /**
+     * Updates records grouped by shard, writing to all the shards at the same
+     * time
+     *
+     * @param records records to update
+     * @throws SQLException
+     */
+    public void updateAll(Collection<T> records) throws SQLException {
+        byShard(records, Repository::updateAll);
+    }
+
+    /**
+     * Deletes records grouped by shard, writing to all the shards at the same
+     * time
+     *
+     * @param records records to delete
+     * @throws SQLException
+     */
+    public void deleteAll(Collection<T> records) throws SQLException {
+        byShard(records, Repository::deleteAll);
+    }
+
+    /**
+     * Reads all the records of every shard
+     *
+     * @param orders order of the merged records (none to append the shards)
+     * @return records
+     */
+    public List<T> selectAll(Select.Order... orders) {
+        return merge(fanOut(shards, shard -> shard.selectAll(orders).runToRecords(metadata::newInstance)), orders);
+    }
+
+    /**
+     * Reads the records of every shard matching a filter
+     *
+     * @param filter filter of records
+     * @param orders order of the merged records (none to append the shards)
+     * @return records
+     */
+    public List<T> selectByFilter(Filter filter, Select.Order... orders) {
+        return merge(fanOut(shards, shard -> shard.selectByFilter(filter, orders)
+                .runToRecords(metadata::newInstance)), orders);
+    }
+
+    public long countAll() {
+        return fanOut(shards, Repository::countAll).stream().mapToLong(Long::longValue).sum();
+    }
+
+    public long count(Filter filter) {
+        return fanOut(shards, shard -> shard.count(filter)).stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * Runs a write of a collection on the records of every shard
+     */
+    private void byShard(Collection<T> records, ShardWrite<T> write) throws SQLException {
+        var groups = new LinkedHashMap<Repository<T>, List<T>>();
+
+        for (var record : records) {
+            groups.computeIfAbsent(shardOf(record), s -> new ArrayList<>()).add(record);
+        }
+
+        try {
+            fanOut(new ArrayList<>(groups.keySet()), shard -> {
+                write.run(shard, groups.get(shard));
+                return null;
+            });
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Runs an operation on several shards at the same time. Shards with a
+     * transaction in the calling thread run on the calling thread
+     *
+     * @return results in shard order
+     */
+    private <R> List<R> fanOut(List<Repository<T>> targets, ShardCall<T, R> call) {
+        var futures = new ArrayList<Future<R>>(targets.size());
+
+        for (var shard : targets) {
+            futures.add(shard.getDbConnection().getTransaction() != null || targets.size() == 1
+                    ? null
+                    : executor.submit(() -> call.call(shard)));
+        }
+
+        var results = new ArrayList<R>(targets.size());
+
+        try {
+            for (int x = 0; x < targets.size(); x++) {
+                final var future = futures.get(x);
+                results.add(future != null ? future.get() : call.call(targets.get(x)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException
+                    ? (RuntimeException) e.getCause()
+                    : new RuntimeException(e.getCause());
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            futures.forEach(f -> {
+                if (f != null)
+                    f.cancel(true);
+            });
+        }
+
+        return results;
+    }
+
+    /**
+     * Merges the records of every shard: appended if there are no orders,
+     * otherwise with a k-way merge of the ordered lists (nulls go first in
+     * ascending order; strings are compared by Java, which may differ from the
+     * collation of the database)
+     */
+    private List<T> merge(List<List<T>> results, Select.Order... orders) {
+        final int total = results.stream().mapToInt(List::size).sum();
+        var merged = new ArrayList<T>(total);
+
+        if (orders.length == 0) {
+            results.forEach(merged::addAll);
+            return merged;
+        }
+
+        final var order = List.of(orders);
+        final var keys = shards.get(0);
+        final var heads = new PriorityQueue<Head>((a, b) -> {
+            final int c = compare(a.values, b.values, orders);
+            return c != 0 ? c : Integer.compare(a.shard, b.shard); // Empate: orden de shard
+        });
+        final int[] positions = new int[results.size()];
+
+        for (int x = 0; x < results.size(); x++) {
+            if (!results.get(x).isEmpty())
+                heads.add(new Head(keys.valuesOf(results.get(x).get(0), order), x));
+        }
+
+        while (!heads.isEmpty()) {
+            final int shard = heads.poll().shard;
+            final var records = results.get(shard);
+
+            merged.add(records.get(positions[shard]++));
+
+            if (positions[shard] < records.size())
+                heads.add(new Head(keys.valuesOf(records.get(positions[shard]), order), shard));
+        }
+
+        return merged;
+    }
+
+    private static int compare(Object[] a, Object[] b, Select.Order[] orders) {
+        for (int x = 0; x < orders.length; x++) {
+            final int c = compareValues(a[x], b[x]);
+
+            if (c != 0)
+                return orders[x].isAscendent() ? c : -c;
+        }
+
+        return 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object a, Object b) {
+        if (a == b)
+            return 0;
+        else if (a == null)
+            return -1;
+        else if (b == null)
+            return 1;
+        else if (a instanceof Number && b instanceof Number && a.getClass() != b.getClass())
+            return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString()));
+
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+}
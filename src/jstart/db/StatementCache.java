@@ -0,0 +1,200 @@
+package jstart.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of prepared statements of a connection, keyed by SQL text and
+ * generated keys mode. A statement is checked out while a query uses it, so
+ * the same SQL running twice at the same time gets two different statements
+ */
+public class StatementCache {
+    /**
+     * Shared configuration and counters of all statement caches of a
+     * DBConnection
+     */
+    static class Config {
+        volatile int size;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+    }
+
+    /**
+     * Snapshot of the statement cache counters
+     */
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+
+        Stats(Config config) {
+            this.hits = config.hits.get();
+            this.misses = config.misses.get();
+            this.evictions = config.evictions.get();
+        }
+
+        /**
+         * @return number of statements reused from the cache
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return number of statements prepared because they weren't cached
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return number of statements closed to make room in the cache
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * @return ratio of hits over all requests (0 if there are no requests)
+         */
+        public double getHitRatio() {
+            final long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=%d, misses=%d, evictions=%d".formatted(hits, misses, evictions);
+        }
+    }
+
+    private static class Key {
+        final String sql;
+        final Boolean generateKeys;
+
+        Key(String sql, Boolean generateKeys) {
+            this.sql = sql;
+            this.generateKeys = generateKeys;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).sql.equals(sql) && Objects.equals(((Key) o).generateKeys, generateKeys);
+        }
+
+        @Override
+        public int hashCode() {
+            return sql.hashCode() * 31 + Objects.hashCode(generateKeys);
+        }
+    }
+
+    private final Connection conn;
+    private final Config config;
+    private final LinkedHashMap<Key, PreparedStatement> statements;
+    private final Map<PreparedStatement, Key> checkedOut;
+
+    StatementCache(Connection conn, Config config) {
+        this.conn = conn;
+        this.config = config;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true);
+        this.checkedOut = new IdentityHashMap<>();
+    }
+
+    /**
+     * Gets a prepared statement for a SQL text, reusing a cached one if possible
+     *
+     * @param sql          SQL text
+     * @param generateKeys null for queries, true/false for updates with or
+     *                     without generated keys
+     * @return prepared statement (must be given back with release())
+     * @throws SQLException
+     */
+    synchronized PreparedStatement prepare(String sql, Boolean generateKeys) throws SQLException {
+        final var event = new DBEvents.Prepare();
+
+        event.begin();
+
+        final var key = new Key(sql, generateKeys);
+        var ps = config.size > 0 ? statements.remove(key) : null;
+
+        if (ps != null && !ps.isClosed()) {
+            config.hits.incrementAndGet();
+            event.cached = true;
+        } else {
+            config.misses.incrementAndGet();
+
+            if (generateKeys == null) {
+                ps = conn.prepareStatement(sql);
+            } else if (generateKeys) {
+                ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            } else {
+                ps = conn.prepareStatement(sql, Statement.NO_GENERATED_KEYS);
+            }
+        }
+
+        checkedOut.put(ps, key);
+        event.commit(sql, null, 0);
+
+        return ps;
+    }
+
+    /**
+     * Gives back a statement obtained with prepare(). It's kept in the cache with
+     * its parameters cleared, or closed if the cache is disabled or already has
+     * a statement for the same SQL
+     *
+     * @param ps prepared statement
+     */
+    synchronized void release(PreparedStatement ps) {
+        final var key = checkedOut.remove(ps);
+
+        try {
+            if (key == null || config.size <= 0 || ps.isClosed() || statements.containsKey(key)) {
+                ps.close();
+                return;
+            }
+
+            ps.clearParameters();
+            ps.clearBatch();
+            statements.put(key, ps);
+
+            var it = statements.values().iterator();
+
+            while (statements.size() > config.size && it.hasNext()) {
+                var eldest = it.next();
+                it.remove();
+                config.evictions.incrementAndGet();
+                eldest.close();
+            }
+        } catch (SQLException e) {
+            try {
+                ps.close();
+            } catch (SQLException ignored) {
+                // The statement is discarded anyway
+            }
+        }
+    }
+
+    /**
+     * Closes all cached statements
+     */
+    synchronized void close() {
+        for (var ps : statements.values()) {
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                // The connection is being closed anyway
+            }
+        }
+
+        statements.clear();
+    }
+}
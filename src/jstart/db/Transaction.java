@@ -0,0 +1,277 @@
+package jstart.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Database transaction bound to the thread that began it (see
+ * DBConnection.begin()). Every query of the DBConnection run by that thread
+ * uses the connection of the transaction. It also works as a unit of work:
+ * inserts, updates, upserts and deletes of entities made through repositories
+ * are collected, grouped by table and statement shape, and written as JDBC
+ * batches before the next query or at commit. Entities read or written by id
+ * are kept in an identity map, so the same row isn't loaded twice
+ *
+ * <pre>
+ * try (var tx = connection.begin()) {
+ *     repository.insert(a);
+ *     repository.update(b);
+ *     tx.commit();
+ * }
+ * </pre>
+ */
+public class Transaction implements AutoCloseable {
+    enum Operation {
+        INSERT, UPDATE, UPSERT, DELETE
+    }
+
+    /**
+     * Pending writes of a repository with the same operation and statement shape
+     */
+    private static class Batch<T extends Entity<T>> {
+        final Repository<T> repository;
+        final Operation operation;
+        final String table;
+        final List<String> shape;
+        final List<T> records;
+
+        Batch(Repository<T> repository, Operation operation, String table, List<String> shape) {
+            this.repository = repository;
+            this.operation = operation;
+            this.table = table;
+            this.shape = shape;
+            this.records = new ArrayList<>();
+        }
+
+        void flush() throws SQLException {
+            final var event = new DBEvents.Batch();
+
+            event.begin();
+            repository.runDeferred(operation, records);
+            event.operation = operation.name();
+            event.commit(null, table, records.size());
+        }
+    }
+
+    private final DBConnection connection;
+    private final ConnectionSource owner;
+    private final Connection conn;
+    private final ConnectionSource.Pinned source;
+    private final boolean autoCommit;
+    private final List<Batch<?>> batches;
+    private final Map<Class<?>, Map<Object, Object>> identities;
+    private final Set<String> tables;
+    private final List<Runnable> committed;
+    private boolean flushing;
+    private boolean active;
+
+    Transaction(DBConnection connection, ConnectionSource owner) throws SQLException {
+        this.connection = connection;
+        this.owner = owner;
+        this.conn = owner.acquire();
+        this.source = new ConnectionSource.Pinned(conn, owner.statements(conn));
+        this.batches = new ArrayList<>();
+        this.identities = new HashMap<>();
+        this.tables = new HashSet<>();
+        this.committed = new ArrayList<>();
+
+        try {
+            this.autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+        } catch (SQLException | RuntimeException e) {
+            owner.release(conn);
+            throw e;
+        }
+
+        this.active = true;
+    }
+
+    /**
+     * @return true until the transaction is committed or rolled back
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Writes the pending inserts, updates and deletes (in batches) without
+     * committing
+     *
+     * @throws SQLException
+     */
+    public void flush() throws SQLException {
+        if (flushing || batches.isEmpty())
+            return;
+
+        flushing = true;
+
+        try {
+            while (!batches.isEmpty()) {
+                batches.get(0).flush();
+                batches.remove(0);
+            }
+        } finally {
+            flushing = false;
+        }
+    }
+
+    /**
+     * Writes the pending changes and commits the transaction
+     *
+     * @throws SQLException
+     */
+    public void commit() throws SQLException {
+        checkActive();
+        flush();
+        conn.commit();
+        end();
+        connection.written();
+
+        final var cache = connection.getQueryCache();
+
+        if (cache != null) // Results read by other threads before the commit
+            tables.forEach(cache::invalidate);
+
+        committed.forEach(Runnable::run);
+        committed.clear();
+    }
+
+    /**
+     * Runs an action after the commit (like removing the written entities from
+     * the cache of a repository, which other threads may have read before)
+     *
+     * @param action action to run
+     */
+    void afterCommit(Runnable action) {
+        committed.add(action);
+    }
+
+    /**
+     * Discards the pending changes and rolls back the transaction
+     *
+     * @throws SQLException
+     */
+    public void rollback() throws SQLException {
+        checkActive();
+        batches.clear();
+        committed.clear();
+
+        try {
+            conn.rollback();
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Rolls back the transaction if it wasn't committed
+     */
+    @Override
+    public void close() throws SQLException {
+        if (active)
+            rollback();
+    }
+
+    private void checkActive() {
+        if (!active)
+            throw new IllegalStateException("The transaction is finished");
+    }
+
+    private void end() throws SQLException {
+        active = false;
+        identities.clear();
+
+        try {
+            conn.setAutoCommit(autoCommit);
+        } finally {
+            connection.endTransaction(this);
+            owner.release(conn);
+        }
+    }
+
+    /**
+     * Source of the connection of the transaction
+     */
+    ConnectionSource source() {
+        return source;
+    }
+
+    /**
+     * Notes a table written in the transaction
+     */
+    void written(String table) {
+        tables.add(table);
+    }
+
+    /**
+     * Registers a write to run later in a batch. It joins the last batch of the
+     * same repository, operation and shape, unless a later batch writes the same
+     * table (the order of the writes of every table is kept)
+     *
+     * @return false if the write must run now (the transaction is flushing)
+     */
+    <T extends Entity<T>> boolean defer(Repository<T> repository, Operation operation, String table,
+            List<String> shape, T record) {
+        if (flushing || !active)
+            return false;
+
+        tables.add(table);
+
+        for (int x = batches.size() - 1; x >= 0; x--) {
+            final var batch = batches.get(x);
+
+            if (batch.repository == repository && batch.operation == operation && batch.shape.equals(shape)) {
+                @SuppressWarnings("unchecked") // Same repository, so same entity class
+                final var same = (Batch<T>) batch;
+
+                same.records.add(record);
+                return true;
+            }
+
+            if (batch.table.equals(table))
+                break;
+        }
+
+        final var batch = new Batch<>(repository, operation, table, shape);
+
+        batch.records.add(record);
+        batches.add(batch);
+
+        return true;
+    }
+
+    /**
+     * Gets an entity of the identity map
+     *
+     * @param type entity class
+     * @param key  primary key value
+     * @return entity object or null if it isn't in the map
+     */
+    <T> T find(Class<T> type, Object key) {
+        final var records = identities.get(type);
+        return records != null ? type.cast(records.get(EntityCache.normalize(key))) : null;
+    }
+
+    /**
+     * Stores an entity in the identity map
+     */
+    void remember(Class<?> type, Object key, Object record) {
+        identities.computeIfAbsent(type, t -> new HashMap<>()).put(EntityCache.normalize(key), record);
+    }
+
+    /**
+     * Removes an entity from the identity map
+     */
+    void forget(Class<?> type, Object key) {
+        final var records = identities.get(type);
+
+        if (records != null)
+            records.remove(EntityCache.normalize(key));
+    }
+}
@@ -0,0 +1,131 @@
+package jstart.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Creates an upsert sentence: inserts a row, or updates it if a row with the
+ * same key already exists, in a single statement. It's rendered for the
+ * dialect of the connection (set by DBConnection.query()):
+ * <ul>
+ * <li>MySQL: INSERT ... ON DUPLICATE KEY UPDATE</li>
+ * <li>SQLite: INSERT ... ON CONFLICT (key) DO UPDATE</li>
+ * <li>Firebird: UPDATE OR INSERT ... MATCHING (key)</li>
+ * <li>SQL Server and others: MERGE</li>
+ * </ul>
+ */
+public class Upsert extends Command<Upsert> {
+    private final List<String> keys;
+    private Dialect dialect;
+
+    protected Upsert() {
+        keys = new ArrayList<>();
+    }
+
+    public static Upsert query() {
+        return new Upsert();
+    }
+
+    public Upsert value(String name, Object value) {
+        super.value(name, value);
+        return this;
+    }
+
+    public Upsert value(String name) {
+        super.value(name, "?");
+        return this;
+    }
+
+    /**
+     * Sets the key columns matching existing rows (the primary key or a unique
+     * key). They must be also given as values
+     *
+     * @param columns key columns
+     * @return upsert object
+     */
+    public Upsert key(String... columns) {
+        keys.addAll(Arrays.asList(columns));
+        return this;
+    }
+
+    /**
+     * Sets the SQL dialect of the sentence
+     *
+     * @param dialect SQL dialect
+     * @return upsert object
+     */
+    public Upsert dialect(Dialect dialect) {
+        this.dialect = dialect;
+        return this;
+    }
+
+    /**
+     * @return SQL dialect of the sentence (null if not set yet)
+     */
+    public Dialect getDialect() {
+        return dialect;
+    }
+
+    @Override
+    public String toString() {
+        if (keys.isEmpty())
+            throw new IllegalStateException("An upsert needs the key columns");
+
+        final var values = getValues();
+        final var columns = new ArrayList<>(values.keySet());
+        final var updated = columns.stream().filter(c -> !keys.contains(c)).collect(Collectors.toList());
+        final var names = columns.stream().map(encloseString("%s")::formatted).collect(Collectors.joining(","));
+        final var row = values.values().stream().map(v -> {
+            if (v instanceof String && !v.equals("?")) // Text, but not a placeholder
+                return "'%s'".formatted(v);
+            else if (v == null)
+                return "NULL";
+            else
+                return v.toString();
+        }).collect(Collectors.joining(","));
+        final var table = encloseString(table());
+        final var keyNames = keys.stream().map(encloseString("%s")::formatted).collect(Collectors.joining(","));
+
+        clear();
+
+        switch (dialect != null ? dialect : Dialect.GENERIC) {
+            case MYSQL:
+                append("INSERT INTO %s (%s) VALUES (%s) ON DUPLICATE KEY UPDATE %s", table, names, row,
+                        updated.isEmpty()
+                                ? "%1$s = %1$s".formatted(encloseString(keys.get(0)))
+                                : updated.stream().map(c -> "%1$s = VALUES(%1$s)".formatted(encloseString(c)))
+                                        .collect(Collectors.joining(",")));
+                break;
+            case SQLITE:
+                append("INSERT INTO %s (%s) VALUES (%s) ON CONFLICT (%s) DO ", table, names, row, keyNames);
+                append(updated.isEmpty()
+                        ? "NOTHING"
+                        : "UPDATE SET " + updated.stream().map(c -> "%1$s = excluded.%1$s".formatted(encloseString(c)))
+                                .collect(Collectors.joining(",")));
+                break;
+            case FIREBIRD:
+                append("UPDATE OR INSERT INTO %s (%s) VALUES (%s) MATCHING (%s)", table, names, row, keyNames);
+                break;
+            default:
+                append("MERGE INTO %s%s AS target USING (VALUES (%s)) AS source (%s) ON %s",
+                        table, dialect == Dialect.SQLSERVER ? " WITH (HOLDLOCK)" : "", row, names,
+                        keys.stream().map(c -> "target.%1$s = source.%1$s".formatted(encloseString(c)))
+                                .collect(Collectors.joining(" AND ")));
+
+                if (!updated.isEmpty())
+                    append(" WHEN MATCHED THEN UPDATE SET %s",
+                            updated.stream().map(c -> "%1$s = source.%1$s".formatted(encloseString(c)))
+                                    .collect(Collectors.joining(",")));
+
+                append(" WHEN NOT MATCHED THEN INSERT (%s) VALUES (%s)", names,
+                        columns.stream().map(c -> "source." + encloseString(c)).collect(Collectors.joining(",")));
+
+                if (dialect == Dialect.SQLSERVER)
+                    append(";"); // MERGE must end with a semicolon
+        }
+
+        return super.toString();
+    }
+}
@@ -0,0 +1,534 @@
+package jstart.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import jstart.Timeout;
+
+/**
+ * Write-behind queue of a repository (see Repository.enableWriteBehind()):
+ * insert, update, upsert and delete return at once and the writes are done
+ * later by a background flusher, in batches. Writes of the same primary key
+ * waiting in the queue are merged into one, so only the last state of a record
+ * is written. The queue is flushed when it reaches the batch size or when its
+ * oldest write has waited the maximum delay (with a Timeout). Pending writes
+ * are lost if the process ends without flush(). If a write fails, flush()
+ * puts the unwritten records back in the queue (merged under newer writes of
+ * the same keys) and throws; a background flush discards them (counted in
+ * getFailed()) and reports the error to the onError option
+ *
+ * @param <T> entity class
+ */
+public class WriteBehind<T extends Entity<T>> {
+    /**
+     * What a write does when the queue is full
+     */
+    public enum Backpressure {
+        /**
+         * Waits until the flusher makes room
+         */
+        BLOCK,
+        /**
+         * Discards the write (counted in getDropped()); the repository write
+         * fails with a SQLTransientException
+         */
+        DROP,
+        /**
+         * Flushes the queue in the calling thread
+         */
+        CALLER_RUNS
+    }
+
+    /**
+     * Options of a write-behind queue
+     */
+    public static class Options {
+        private int capacity = 10_000;
+        private int batchSize = 500;
+        private long maxDelay = 1000;
+        private Backpressure backpressure = Backpressure.BLOCK;
+        private Consumer<Exception> onError = e -> {
+        };
+
+        private Options() {
+        }
+
+        /**
+         * Creates the default options: 10000 pending records, batches of 500,
+         * one second of maximum delay and blocking backpressure
+         *
+         * @return options object
+         */
+        public static Options create() {
+            return new Options();
+        }
+
+        /**
+         * @param capacity maximum number of pending records
+         * @return options object
+         */
+        public Options capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * @param batchSize pending records that start a flush
+         * @return options object
+         */
+        public Options batchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * @param ms maximum milliseconds a write waits in the queue
+         * @return options object
+         */
+        public Options maxDelay(long ms) {
+            this.maxDelay = ms;
+            return this;
+        }
+
+        /**
+         * @param backpressure what a write does when the queue is full
+         * @return options object
+         */
+        public Options backpressure(Backpressure backpressure) {
+            this.backpressure = backpressure;
+            return this;
+        }
+
+        /**
+         * @param onError receives the errors of background flushes (the failed
+         *                writes are discarded; ignored by default)
+         * @return options object
+         */
+        public Options onError(Consumer<Exception> onError) {
+            this.onError = onError;
+            return this;
+        }
+    }
+
+    /**
+     * Pending write of a record
+     */
+    static class Pending<T> {
+        Transaction.Operation operation;
+        T record;
+
+        Pending(Transaction.Operation operation, T record) {
+            this.operation = operation;
+            this.record = record;
+        }
+    }
+
+    private final Repository<T> repository;
+    private final Options options;
+    private final ReentrantLock lock;
+    private final Condition space;
+    private final ReentrantLock flushing;
+    private final ExecutorService flusher;
+    private final AtomicLong written;
+    private final AtomicLong dropped;
+    private final AtomicLong failed;
+    private Map<Object, Pending<T>> keyed;
+    private Map<Object, Pending<T>> inFlight;
+    private List<T> inserts;
+    private Timeout timer;
+    private boolean flushQueued;
+    private boolean closed;
+
+    WriteBehind(Repository<T> repository, Options options) {
+        if (options.capacity < 1 || options.batchSize < 1)
+            throw new IllegalArgumentException("Capacity and batch size must be greater than 0");
+
+        this.repository = repository;
+        this.options = options;
+        this.lock = new ReentrantLock();
+        this.space = lock.newCondition();
+        this.flushing = new ReentrantLock();
+        this.flusher = Executors.newSingleThreadExecutor(r -> {
+            var thread = new Thread(r, "jstart-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.written = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.failed = new AtomicLong();
+        this.keyed = new LinkedHashMap<>();
+        this.inFlight = Map.of();
+        this.inserts = new ArrayList<>();
+    }
+
+    /**
+     * @return number of records waiting to be written
+     */
+    public int getPending() {
+        lock.lock();
+
+        try {
+            return keyed.size() + inserts.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of records written by the flushes
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return number of writes discarded because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of writes discarded because a background flush failed
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Adds a write to the queue, merged with a pending write of the same key
+     *
+     * @param operation write operation
+     * @param record    entity object (it shouldn't be modified after)
+     * @param key       primary key value (null for inserts without key)
+     * @return false if the write was dropped
+     */
+    boolean enqueue(Transaction.Operation operation, T record, Object key) {
+        final var normalized = key != null ? EntityCache.normalize(key) : null;
+
+        lock.lock();
+
+        try {
+            while (true) {
+                if (closed)
+                    throw new IllegalStateException("The write-behind queue is closed");
+
+                final var pending = normalized != null ? keyed.get(normalized) : null;
+
+                if (pending != null) { // Merged: the queue doesn't grow
+                    pending.operation = merge(pending.operation, operation);
+                    pending.record = record;
+                    return true;
+                }
+
+                if (keyed.size() + inserts.size() < options.capacity)
+                    break;
+
+                switch (options.backpressure) {
+                    case DROP:
+                        dropped.incrementAndGet();
+                        return false;
+                    case CALLER_RUNS:
+                        lock.unlock();
+
+                        try {
+                            flush();
+                        } finally {
+                            lock.lock();
+                        }
+
+                        break;
+                    default:
+                        requestFlush();
+
+                        try {
+                            space.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RuntimeException(e);
+                        }
+                }
+            }
+
+            if (normalized != null)
+                keyed.put(normalized, new Pending<>(operation, record));
+            else
+                inserts.add(record);
+
+            final int size = keyed.size() + inserts.size();
+
+            if (size >= options.batchSize)
+                requestFlush();
+            else if (timer == null)
+                timer = Timeout.run(options.maxDelay, () -> {
+                    lock.lock();
+
+                    try {
+                        requestFlush();
+                    } finally {
+                        lock.unlock();
+                    }
+                });
+
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Operation of two writes of the same key merged into one
+     */
+    private static Transaction.Operation merge(Transaction.Operation previous, Transaction.Operation next) {
+        if (next == Transaction.Operation.DELETE)
+            return next;
+
+        switch (previous) {
+            case DELETE: // Delete and insert is a replace; updating a deleted row does nothing
+                return next == Transaction.Operation.UPDATE ? previous : Transaction.Operation.UPSERT;
+            case INSERT:
+                return next == Transaction.Operation.UPSERT ? next : previous;
+            case UPDATE:
+                return next == Transaction.Operation.UPDATE ? next : Transaction.Operation.UPSERT;
+            default:
+                return Transaction.Operation.UPSERT;
+        }
+    }
+
+    /**
+     * Gets the pending write of a primary key (including a write being flushed)
+     *
+     * @param key primary key value
+     * @return pending write or null if there is none
+     */
+    Pending<T> find(Object key) {
+        final var normalized = EntityCache.normalize(key);
+
+        lock.lock();
+
+        try {
+            final var pending = keyed.get(normalized);
+            return pending != null ? pending : inFlight.get(normalized);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs a flush in the background (with the lock held)
+     */
+    private void requestFlush() {
+        if (flushQueued || closed)
+            return;
+
+        flushQueued = true;
+        flusher.execute(() -> {
+            lock.lock();
+
+            try {
+                flushQueued = false;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                flush(false);
+            } catch (RuntimeException e) {
+                options.onError.accept(e);
+            }
+        });
+    }
+
+    /**
+     * Writes all the pending records in the calling thread, waiting for a
+     * running background flush. If a write fails, the records not written are
+     * put back in the queue
+     */
+    public void flush() {
+        flush(true);
+    }
+
+    /**
+     * Writes all the pending records
+     *
+     * @param requeue true to put back the records not written if a write fails
+     *                (otherwise they are discarded)
+     */
+    private void flush(boolean requeue) {
+        flushing.lock();
+
+        try {
+            final Map<Object, Pending<T>> batch;
+            final List<T> batchInserts;
+
+            lock.lock();
+
+            try {
+                if (keyed.isEmpty() && inserts.isEmpty())
+                    return;
+
+                batch = keyed;
+                batchInserts = inserts;
+                inFlight = batch;
+                keyed = new LinkedHashMap<>();
+                inserts = new ArrayList<>();
+
+                if (timer != null) {
+                    timer.stop();
+                    timer = null;
+                }
+
+                space.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            write(batch, batchInserts, requeue);
+        } finally {
+            flushing.unlock();
+        }
+    }
+
+    /**
+     * Writes a batch of pending records with the collection methods of the
+     * repository (one write per key, so the order of operations doesn't matter):
+     * deletes, inserts, upserts and updates. If one fails, the records of that
+     * operation and the following ones aren't written
+     */
+    private void write(Map<Object, Pending<T>> batch, List<T> batchInserts, boolean requeue) {
+        final var operations = List.of(Transaction.Operation.DELETE, Transaction.Operation.INSERT,
+                Transaction.Operation.UPSERT, Transaction.Operation.UPDATE);
+        final var groups = new HashMap<Transaction.Operation, List<T>>();
+
+        operations.forEach(operation -> groups.put(operation, new ArrayList<>()));
+        groups.get(Transaction.Operation.INSERT).addAll(batchInserts);
+        batch.values().forEach(pending -> groups.get(pending.operation).add(pending.record));
+
+        int done = 0;
+
+        try {
+            for (var operation : operations) {
+                final var records = groups.get(operation);
+
+                if (!records.isEmpty())
+                    run(operation, records);
+
+                written.addAndGet(records.size());
+                done++;
+            }
+        } catch (SQLException | RuntimeException e) {
+            final var remaining = operations.subList(done, operations.size());
+            final var unwritten = new LinkedHashMap<Object, Pending<T>>();
+
+            batch.forEach((key, pending) -> {
+                if (remaining.contains(pending.operation))
+                    unwritten.put(key, pending);
+            });
+
+            final var unwrittenInserts = done <= operations.indexOf(Transaction.Operation.INSERT)
+                    ? batchInserts
+                    : List.<T>of();
+
+            lock.lock();
+
+            try {
+                inFlight = Map.of();
+
+                if (requeue)
+                    requeue(unwritten, unwrittenInserts);
+                else
+                    failed.addAndGet(unwritten.size() + unwrittenInserts.size());
+            } finally {
+                lock.unlock();
+            }
+
+            throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+        }
+
+        lock.lock();
+
+        try {
+            inFlight = Map.of();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run(Transaction.Operation operation, List<T> records) throws SQLException {
+        switch (operation) {
+            case DELETE:
+                repository.deleteAll(records);
+                break;
+            case INSERT:
+                repository.insertAll(records);
+                break;
+            case UPSERT:
+                repository.upsertAll(records);
+                break;
+            case UPDATE:
+                repository.updateAll(records);
+                break;
+        }
+    }
+
+    /**
+     * Puts back the writes of a failed flush (with the lock held). A key written
+     * again meanwhile keeps its newer record, with both operations merged. They
+     * wait for the next flush
+     */
+    private void requeue(Map<Object, Pending<T>> unwritten, List<T> unwrittenInserts) {
+        final var newer = keyed;
+
+        keyed = new LinkedHashMap<>(unwritten);
+        newer.forEach((key, pending) -> {
+            final var previous = keyed.get(key);
+
+            if (previous != null) {
+                previous.operation = merge(previous.operation, pending.operation);
+                previous.record = pending.record;
+            } else {
+                keyed.put(key, pending);
+            }
+        });
+
+        final var inserts = new ArrayList<T>(unwrittenInserts);
+
+        inserts.addAll(this.inserts);
+        this.inserts = inserts;
+    }
+
+    /**
+     * Flushes the pending records and stops the flusher
+     */
+    void close() {
+        try {
+            flush();
+        } finally {
+            lock.lock();
+
+            try {
+                closed = true;
+                space.signalAll();
+
+                if (timer != null) {
+                    timer.stop();
+                    timer = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            flusher.shutdown();
+        }
+    }
+}
@@ -4,9 +4,15 @@ import java.sql.Timestamp;
 import java.time.LocalDateTime;
 
 import jstart.db.Command;
+import jstart.db.Dialect;
 import jstart.db.Select;
 
 public class FBSelect extends Select {
+    @Override
+    public Dialect dialect() {
+        return Dialect.FIREBIRD;
+    }
+
     @Override
     public String toString() {
         String select = super.toString();
@@ -1,8 +1,13 @@
 package jstart.db.custom;
 
+import jstart.db.Dialect;
 import jstart.db.Select;
 
 public class MySQLSelect extends Select {
+    @Override
+    public Dialect dialect() {
+        return Dialect.MYSQL;
+    }
 
     @Override
     public String toString() {
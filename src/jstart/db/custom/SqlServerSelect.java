@@ -1,8 +1,14 @@
 package jstart.db.custom;
 
+import jstart.db.Dialect;
 import jstart.db.Select;
 
 public class SqlServerSelect extends Select {
+    @Override
+    public Dialect dialect() {
+        return Dialect.SQLSERVER;
+    }
+
     @Override
     public String toString() {
         String select = super.toString();
@@ -1,4 +1,10 @@
 package jstart.db.custom;
 
+import jstart.db.Dialect;
+
 public class SqliteSelect extends MySQLSelect {
+    @Override
+    public Dialect dialect() {
+        return Dialect.SQLITE;
+    }
 }